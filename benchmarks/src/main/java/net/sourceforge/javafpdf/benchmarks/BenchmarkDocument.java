@@ -0,0 +1,44 @@
+package net.sourceforge.javafpdf.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.sourceforge.javafpdf.FPDF;
+
+/**
+ * A document without header and footer, with a font selected.
+ *
+ * @since 1.5.3
+ */
+public class BenchmarkDocument extends FPDF {
+    /**
+     * Discards everything written to it.
+     */
+    public static final OutputStream NULL = new OutputStream() {
+        @Override
+        public void write(final int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    };
+
+    /**
+     * Constructor. Creates a document with Times 12 selected and one page.
+     *
+     * @throws IOException if the font can not be loaded.
+     */
+    public BenchmarkDocument() throws IOException {
+        this.setFont("Times", null, 12);
+        this.addPage();
+    }
+
+    @Override
+    public void Header() {
+    }
+
+    @Override
+    public void Footer() {
+    }
+}
@@ -0,0 +1,47 @@
+package net.sourceforge.javafpdf.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.javafpdf.util.Compressor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compressing and decompressing 300 KB of page content with the pooled
+ * Deflaters and the Inflater.
+ *
+ * @since 1.5.3
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class CompressorBenchmark {
+    private byte[] content;
+
+    private byte[] compressed;
+
+    @Setup
+    public void setUp() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("BT 31.19 ").append(i % 800).append(".77 Td (Line ").append(i).append(") Tj ET\n");
+        }
+        this.content = sb.toString().getBytes();
+        this.compressed = Compressor.compress(this.content);
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return Compressor.compress(this.content);
+    }
+
+    @Benchmark
+    public byte[] decompress() {
+        return Compressor.decompress(this.compressed, this.content.length);
+    }
+}
@@ -0,0 +1,58 @@
+package net.sourceforge.javafpdf.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.javafpdf.FPDF;
+import net.sourceforge.javafpdf.Position;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Closing and writing a document of 1, 100 and 10,000 pages, uncompressed
+ * and compressed. The pages are filled before each invocation, so only
+ * <code>close()</code> and <code>output()</code> are measured. The time per
+ * page should stay about the same from 100 to 10,000 pages; writing the
+ * object offsets used to make it grow with the size of the document.
+ *
+ * @since 1.5.3
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class DocumentBenchmark {
+    @Param({"1", "100", "10000"})
+    public int pages;
+
+    @Param({"false", "true"})
+    public boolean compress;
+
+    private FPDF pdf;
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        this.pdf = new BenchmarkDocument();
+        this.pdf.setCompression(this.compress);
+        for (int i = 0; i < this.pages; i++) {
+            if (i > 0) {
+                this.pdf.addPage();
+            }
+            for (int j = 0; j < 40; j++) {
+                this.pdf.Cell(0, 6, "Page " + i + ", line " + j, Position.NEXTLINE);
+            }
+        }
+    }
+
+    @Benchmark
+    public FPDF output() throws IOException {
+        this.pdf.output(BenchmarkDocument.NULL);
+        return this.pdf;
+    }
+}
@@ -0,0 +1,48 @@
+package net.sourceforge.javafpdf.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.javafpdf.Coordinate;
+import net.sourceforge.javafpdf.DrawMode;
+import net.sourceforge.javafpdf.FPDF;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Shapes: <code>Ellipse</code> and <code>RoundedRect</code>, on a fresh
+ * document for each invocation.
+ *
+ * @since 1.5.3
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class ShapeBenchmark {
+    private static final int SHAPES = 50;
+
+    @Benchmark
+    @OperationsPerInvocation(SHAPES)
+    public FPDF ellipse() throws IOException {
+        final FPDF pdf = new BenchmarkDocument();
+        for (int i = 0; i < SHAPES; i++) {
+            pdf.Ellipse(new Coordinate(100, 20 + 5 * i), 40, 20, 30, DrawMode.BOTH, 16);
+        }
+        return pdf;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SHAPES)
+    public FPDF roundedRect() throws IOException {
+        final FPDF pdf = new BenchmarkDocument();
+        for (int i = 0; i < SHAPES; i++) {
+            pdf.RoundedRect(new Coordinate(20, 20 + 5 * i), 80, 20, 5, DrawMode.SHAPE);
+        }
+        return pdf;
+    }
+}
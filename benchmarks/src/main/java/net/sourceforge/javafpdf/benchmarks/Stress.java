@@ -0,0 +1,397 @@
+package net.sourceforge.javafpdf.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import net.sourceforge.javafpdf.Coordinate;
+import net.sourceforge.javafpdf.FPDF;
+import net.sourceforge.javafpdf.ImageType;
+import net.sourceforge.javafpdf.Position;
+
+/**
+ * Load generator rendering large documents: flowing text from the
+ * <i>20,000 Leagues Under the Seas</i> chapters, <code>PdfMultiCellTable</code>
+ * rows from the country list, drawn with the bulk <code>rows</code> method
+ * and a repeated header, and grids of images. For each scenario it
+ * records pages and bytes per second, peak heap usage and garbage collection
+ * pauses, and writes them as a JSON report so that versions can be compared.
+ * <p>
+ * Usage: <code>java -cp target/benchmarks.jar
+ * net.sourceforge.javafpdf.benchmarks.Stress [options]</code>, with
+ * <dl>
+ * <dt><code>--scenario text|table|images|all</code></dt>
+ * <dd>the documents to render, default <code>all</code></dd>
+ * <dt><code>--pages n</code></dt>
+ * <dd>pages of text and of images, default 10000</dd>
+ * <dt><code>--rows n</code></dt>
+ * <dd>table rows, default 1000000</dd>
+ * <dt><code>--warmup n</code></dt>
+ * <dd>unmeasured runs of each scenario before the measured one, default 0</dd>
+ * <dt><code>--compress true|false</code></dt>
+ * <dd>page compression, default true</dd>
+ * <dt><code>--streaming true|false</code></dt>
+ * <dd>write pages as they are finished, default false</dd>
+ * <dt><code>--data dir</code></dt>
+ * <dd>directory of <code>20k_c1.txt</code>, <code>20k_c2.txt</code> and
+ * <code>countries.txt</code>, default <code>..</code></dd>
+ * <dt><code>--out dir</code></dt>
+ * <dd>keeps the documents in this directory instead of discarding them</dd>
+ * <dt><code>--report file</code></dt>
+ * <dd>the JSON report, default standard output</dd>
+ * </dl>
+ *
+ * @since 1.5.3
+ */
+public final class Stress {
+    private final Map<String, String> options = new HashMap<>();
+
+    private List<String> paragraphs;
+
+    private List<List<String>> countries;
+
+    private File[] images;
+
+    private Stress(final String[] args) {
+        this.options.put("scenario", "all");
+        this.options.put("pages", "10000");
+        this.options.put("rows", "1000000");
+        this.options.put("warmup", "0");
+        this.options.put("compress", "true");
+        this.options.put("streaming", "false");
+        this.options.put("data", "..");
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || (i + 1 == args.length)) {
+                throw new IllegalArgumentException("Expected --option value, got " + args[i]);
+            }
+            final String name = args[i].substring(2);
+            if (!this.options.containsKey(name) && !"out".equals(name) && !"report".equals(name)) {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+            this.options.put(name, args[i + 1]);
+        }
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final Stress stress = new Stress(args);
+        final String scenario = stress.options.get("scenario");
+        final List<String> scenarios = "all".equals(scenario) ? Arrays.asList("text", "table", "images")
+                : Arrays.asList(scenario.split(","));
+        stress.load();
+        try {
+            final List<Result> results = new ArrayList<>();
+            for (final String name : scenarios) {
+                for (int i = Integer.parseInt(stress.options.get("warmup")); i > 0; i--) {
+                    stress.run(name);
+                }
+                results.add(stress.run(name));
+            }
+            final String report = stress.options.get("report");
+            if (report == null) {
+                stress.report(System.out, results);
+            } else {
+                try (PrintStream out = new PrintStream(new FileOutputStream(report), false, "UTF-8")) {
+                    stress.report(out, results);
+                }
+            }
+        } finally {
+            for (final File image : stress.images) {
+                image.delete();
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        final File data = new File(this.options.get("data"));
+        this.paragraphs = new ArrayList<>();
+        for (final String chapter : new String[] {"20k_c1.txt", "20k_c2.txt"}) {
+            for (final String line : Files.readAllLines(new File(data, chapter).toPath(), StandardCharsets.ISO_8859_1)) {
+                if (!line.trim().isEmpty()) {
+                    this.paragraphs.add(line);
+                }
+            }
+        }
+        this.countries = new ArrayList<>();
+        for (final String line : Files.readAllLines(new File(data, "countries.txt").toPath(), StandardCharsets.ISO_8859_1)) {
+            if (!line.trim().isEmpty()) {
+                this.countries.add(Arrays.asList(line.split(";")));
+            }
+        }
+        this.images = new File[] {
+            ImageBenchmark.image(BufferedImage.TYPE_INT_RGB, "png"),
+            ImageBenchmark.image(BufferedImage.TYPE_INT_RGB, "jpg"),
+            ImageBenchmark.image(BufferedImage.TYPE_INT_ARGB, "png")
+        };
+    }
+
+    private Result run(final String scenario) throws IOException {
+        final Counter counter = new Counter(this.options.get("out") == null ? BenchmarkDocument.NULL
+                : new FileOutputStream(new File(this.options.get("out"), scenario + ".pdf")));
+        final boolean streaming = Boolean.parseBoolean(this.options.get("streaming"));
+        final Result result = new Result(scenario);
+        result.start();
+        final FPDF pdf;
+        if ("table".equals(scenario)) {
+            pdf = new TableBenchmark.Table();
+        } else {
+            pdf = new FPDF() {
+                @Override
+                public void Header() {
+                }
+
+                @Override
+                public void Footer() {
+                }
+            };
+        }
+        pdf.setCompression(Boolean.parseBoolean(this.options.get("compress")));
+        if (streaming) {
+            pdf.setStreamingOutput(counter);
+        }
+        if ("text".equals(scenario)) {
+            this.text(pdf, Integer.parseInt(this.options.get("pages")));
+        } else if ("table".equals(scenario)) {
+            this.table((TableBenchmark.Table) pdf, Integer.parseInt(this.options.get("rows")));
+        } else if ("images".equals(scenario)) {
+            this.images(pdf, Integer.parseInt(this.options.get("pages")));
+        } else {
+            throw new IllegalArgumentException("Unknown scenario " + scenario);
+        }
+        if (streaming) {
+            pdf.close();
+        } else {
+            pdf.output(counter);
+        }
+        counter.close();
+        result.stop(pdf.pageNo(), counter.count);
+        return result;
+    }
+
+    private void text(final FPDF pdf, final int pages) throws IOException {
+        pdf.setFont("Times", null, 12);
+        pdf.addPage();
+        for (int i = 0; pdf.pageNo() < pages; i++) {
+            pdf.MultiCell(0, 5, this.paragraphs.get(i % this.paragraphs.size()));
+            pdf.Ln(2);
+        }
+    }
+
+    private void table(final TableBenchmark.Table table, final int rows) throws IOException {
+        table.addPage();
+        table.setHeader(Arrays.asList("Country", "Capital", "Description", "Area"));
+        table.rows(new Iterator<List<String>>() {
+            private int i;
+
+            @Override
+            public boolean hasNext() {
+                return this.i < rows;
+            }
+
+            @Override
+            public List<String> next() {
+                final List<String> country = Stress.this.countries.get(this.i % Stress.this.countries.size());
+                final String paragraph = Stress.this.paragraphs.get(this.i % Stress.this.paragraphs.size());
+                final int end = paragraph.indexOf(' ', 60);
+                this.i++;
+                return Arrays.asList(country.get(0), country.get(1),
+                        end < 0 ? paragraph : paragraph.substring(0, end), country.get(2));
+            }
+        });
+    }
+
+    private void images(final FPDF pdf, final int pages) throws IOException {
+        final ImageType[] types = {ImageType.PNG, ImageType.JPEG, ImageType.PNG};
+        pdf.setFont("Times", null, 8);
+        for (int p = 0; p < pages; p++) {
+            pdf.addPage();
+            for (int row = 0; row < 6; row++) {
+                for (int col = 0; col < 4; col++) {
+                    final int n = p + row + col;
+                    final float x = 10 + col * 48;
+                    final float y = 10 + row * 46;
+                    pdf.Image(this.images[n % 3].getPath(), new Coordinate(x, y), 45, 0, types[n % 3], 0);
+                    pdf.setXY(x, y + 31);
+                    pdf.Cell(45, 4, "Image " + n, Position.RIGHTOF);
+                }
+            }
+        }
+    }
+
+    private void report(final PrintStream out, final List<Result> results) {
+        final Runtime runtime = Runtime.getRuntime();
+        out.println("{");
+        out.println("  \"version\": " + string(FPDF.class.getPackage().getImplementationVersion()) + ",");
+        out.println("  \"timestamp\": " + string(Instant.now().toString()) + ",");
+        out.println("  \"java\": " + string(System.getProperty("java.vm.name") + " "
+                + System.getProperty("java.runtime.version")) + ",");
+        out.println("  \"processors\": " + runtime.availableProcessors() + ",");
+        out.println("  \"maxHeapBytes\": " + runtime.maxMemory() + ",");
+        out.println("  \"options\": {");
+        final List<String> names = new ArrayList<>(this.options.keySet());
+        names.sort(null);
+        for (int i = 0; i < names.size(); i++) {
+            out.println("    " + string(names.get(i)) + ": " + string(this.options.get(names.get(i)))
+                    + (i + 1 < names.size() ? "," : ""));
+        }
+        out.println("  },");
+        out.println("  \"results\": [");
+        for (int i = 0; i < results.size(); i++) {
+            out.println(results.get(i).toJson() + (i + 1 < results.size() ? "," : ""));
+        }
+        out.println("  ]");
+        out.println("}");
+    }
+
+    private static String string(final String s) {
+        if (s == null) {
+            return "null";
+        }
+        final StringBuilder sb = new StringBuilder("\"");
+        for (final char c : s.toCharArray()) {
+            if ((c == '"') || (c == '\\')) {
+                sb.append('\\').append(c);
+            } else if (c < ' ') {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Counts the bytes written to a stream.
+     */
+    private static final class Counter extends OutputStream {
+        private final OutputStream out;
+
+        private long count;
+
+        Counter(final OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            this.out.write(b, off, len);
+            this.count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.out.close();
+        }
+    }
+
+    /**
+     * Measurements of one scenario. The peak heap is the sum of the peak
+     * usage of the heap memory pools, and the pauses are taken from the
+     * notifications of the garbage collectors, leaving out concurrent cycles.
+     */
+    private static final class Result implements NotificationListener {
+        private final String scenario;
+
+        private final AtomicLong gcPauses = new AtomicLong();
+
+        private final AtomicLong gcMillis = new AtomicLong();
+
+        private final AtomicLong maxGcPause = new AtomicLong();
+
+        private long startNanos;
+
+        private long nanos;
+
+        private int pages;
+
+        private long bytes;
+
+        private long peakHeap;
+
+        Result(final String scenario) {
+            this.scenario = scenario;
+        }
+
+        void start() {
+            System.gc();
+            for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+            for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                ((NotificationEmitter) gc).addNotificationListener(this, null, null);
+            }
+            this.startNanos = System.nanoTime();
+        }
+
+        void stop(final int pages, final long bytes) {
+            this.nanos = System.nanoTime() - this.startNanos;
+            this.pages = pages;
+            this.bytes = bytes;
+            for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    this.peakHeap += pool.getPeakUsage().getUsed();
+                }
+            }
+            for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                try {
+                    ((NotificationEmitter) gc).removeNotificationListener(this);
+                } catch (final javax.management.ListenerNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        @Override
+        public void handleNotification(final Notification notification, final Object handback) {
+            if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                final GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+                        .from((CompositeData) notification.getUserData());
+                if (info.getGcAction().contains("concurrent")) {
+                    // Runs alongside the application, not a pause
+                    return;
+                }
+                final long duration = info.getGcInfo().getDuration();
+                this.gcPauses.incrementAndGet();
+                this.gcMillis.addAndGet(duration);
+                this.maxGcPause.accumulateAndGet(duration, Math::max);
+            }
+        }
+
+        String toJson() {
+            final double seconds = this.nanos / 1e9;
+            return String.format(Locale.ROOT, "    {\"scenario\": \"%s\", \"pages\": %d, \"bytes\": %d, "
+                    + "\"seconds\": %.3f, \"pagesPerSecond\": %.1f, \"bytesPerSecond\": %.0f, "
+                    + "\"peakHeapBytes\": %d, \"gcCount\": %d, \"gcMillis\": %d, \"maxGcPauseMillis\": %d}",
+                    this.scenario, this.pages, this.bytes, seconds, this.pages / seconds, this.bytes / seconds,
+                    this.peakHeap, this.gcPauses.get(), this.gcMillis.get(), this.maxGcPause.get());
+        }
+    }
+}
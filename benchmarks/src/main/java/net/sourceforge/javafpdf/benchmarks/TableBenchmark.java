@@ -0,0 +1,62 @@
+package net.sourceforge.javafpdf.benchmarks;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.javafpdf.Alignment;
+import net.sourceforge.javafpdf.PdfMultiCellTable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Table rows with <code>PdfMultiCellTable.row</code>, on a fresh document
+ * for each invocation.
+ *
+ * @since 1.5.3
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class TableBenchmark {
+    private static final int ROWS = 20;
+
+    private static final List<String> ROW = Arrays.asList("Austria", "Vienna",
+            "A landlocked country in Central Europe, with the Alps covering most of its territory", "83,871");
+
+    /**
+     * A table with four columns. No page is added yet.
+     */
+    public static class Table extends PdfMultiCellTable {
+        public Table() throws IOException {
+            this.setWidths(Arrays.asList(30, 30, 90, 30));
+            this.setAligns(Arrays.asList(Alignment.LEFT, Alignment.LEFT, Alignment.JUSTIFIED, Alignment.RIGHT));
+            this.setFont("Times", null, 12);
+        }
+
+        @Override
+        public void Header() {
+        }
+
+        @Override
+        public void Footer() {
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public Table row() throws IOException {
+        final Table table = new Table();
+        table.addPage();
+        for (int i = 0; i < ROWS; i++) {
+            table.row(ROW);
+        }
+        return table;
+    }
+}
@@ -0,0 +1,90 @@
+package net.sourceforge.javafpdf.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.javafpdf.Alignment;
+import net.sourceforge.javafpdf.Borders;
+import net.sourceforge.javafpdf.FPDF;
+import net.sourceforge.javafpdf.Position;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Text output: <code>Cell</code>, <code>MultiCell</code> with greedy and
+ * optimal line breaks, <code>write</code> and <code>getStringWidth</code>. Each invocation fills a fresh page, so
+ * that the document does not grow from one iteration to the next.
+ *
+ * @since 1.5.3
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class TextBenchmark {
+    private static final int LINES = 40;
+
+    private static final String PARAGRAPH = "The mysterious object was brought to light in 1866 by several "
+            + "ships which had met it at sea, a long, spindle-shaped, sometimes phosphorescent thing, "
+            + "infinitely bigger and faster than any whale.";
+
+    private static final Borders BORDERS = Borders.allBorders();
+
+    private FPDF widths;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.widths = new BenchmarkDocument();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public FPDF cell() throws IOException {
+        final FPDF pdf = new BenchmarkDocument();
+        for (int i = 0; i < LINES; i++) {
+            pdf.Cell(0, 6, "Printing line number " + i, BORDERS, Position.NEXTLINE, Alignment.LEFT, false, 0);
+        }
+        return pdf;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES / 8)
+    public FPDF multiCell() throws IOException {
+        final FPDF pdf = new BenchmarkDocument();
+        for (int i = 0; i < LINES / 8; i++) {
+            pdf.MultiCell(0, 5, PARAGRAPH, null, Alignment.JUSTIFIED, false);
+        }
+        return pdf;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES / 8)
+    public FPDF multiCellOptimal() throws IOException {
+        final FPDF pdf = new BenchmarkDocument();
+        pdf.setOptimalLineBreaks(true);
+        for (int i = 0; i < LINES / 8; i++) {
+            pdf.MultiCell(0, 5, PARAGRAPH, null, Alignment.JUSTIFIED, false);
+        }
+        return pdf;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES / 8)
+    public FPDF write() throws IOException {
+        final FPDF pdf = new BenchmarkDocument();
+        for (int i = 0; i < LINES / 8; i++) {
+            pdf.write(5, PARAGRAPH + ' ', 0);
+        }
+        return pdf;
+    }
+
+    @Benchmark
+    public float getStringWidth() {
+        return this.widths.getStringWidth(PARAGRAPH);
+    }
+}
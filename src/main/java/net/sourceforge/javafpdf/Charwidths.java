@@ -25,17 +25,24 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Properties;
 
 /**
- * Character widths.
+ * Character widths. The widths file is read once into a table indexed by
+ * character code; characters without an entry are 600 units wide.
  *
  * @author Alan Plum
  * @version $Rev: 8 $
  * @since 4 Mar 2008
  */
 class Charwidths {
-    private final Properties props;
+    /**
+     * Width of characters missing from the widths file.
+     */
+    static final int DEFAULT_WIDTH = 600;
+
+    private final int[] widths;
 
     /**
      * Constructor. Creates a Charwidths object for a core font.
@@ -48,9 +55,11 @@ class Charwidths {
         if (stream == null) {
             throw new IOException("resource " + name + " not found with getResourceAsStream()");
         }
-        this.props = new Properties();
-        this.props.load(stream);
-        stream.close();
+        try {
+            this.widths = load(stream);
+        } finally {
+            stream.close();
+        }
     }
 
     /**
@@ -61,22 +70,74 @@ class Charwidths {
      */
     public Charwidths(final File file) throws IOException {
         final InputStream stream = new FileInputStream(file);
-        this.props = new Properties();
-        this.props.load(stream);
-        stream.close();
+        try {
+            this.widths = load(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Constructor. Creates a Charwidths object from a table of widths.
+     *
+     * @param widths the widths, indexed by character code.
+     */
+    Charwidths(final int[] widths) {
+        this.widths = widths.clone();
+    }
+
+    private static int[] load(final InputStream stream) throws IOException {
+        final Properties props = new Properties();
+        props.load(stream);
+        int size = 256;
+        for (final String key : props.stringPropertyNames()) {
+            size = Math.max(size, Integer.parseInt(key.trim()) + 1);
+        }
+        final int[] widths = new int[size];
+        Arrays.fill(widths, DEFAULT_WIDTH);
+        for (final String key : props.stringPropertyNames()) {
+            widths[Integer.parseInt(key.trim())] = Integer.parseInt(props.getProperty(key).trim());
+        }
+        return widths;
     }
 
     /**
-     * Get the width of the given character.
+     * Get the width of the given character. Characters above 255 are measured
+     * as the WinAnsi code they are printed with.
      *
      * @param c a character
      * @return the width of that character.
      */
     public int get(final char c) {
-        final String str = this.props.getProperty(Integer.valueOf(c).toString());
-        if (str == null) {
-            return 600;
+        final int code = (c < this.widths.length) ? c : WinAnsi.encode(c);
+        return (code < this.widths.length) ? this.widths[code] : DEFAULT_WIDTH;
+    }
+
+    /**
+     * Get the widths table, indexed by character code, for loops measuring
+     * many characters. It must not be modified.
+     *
+     * @return the widths.
+     */
+    int[] getWidths() {
+        return this.widths;
+    }
+
+    /**
+     * Get the total width of a range of characters.
+     *
+     * @param s    the characters
+     * @param from index of the first character
+     * @param to   index after the last character
+     * @return the sum of the character widths.
+     */
+    public int width(final CharSequence s, final int from, final int to) {
+        final int[] widths = this.widths;
+        int w = 0;
+        for (int i = from; i < to; i++) {
+            final char c = s.charAt(i);
+            w += (c < widths.length) ? widths[c] : this.get(c);
         }
-        return Integer.parseInt(str);
+        return w;
     }
 }
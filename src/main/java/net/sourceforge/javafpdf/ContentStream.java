@@ -0,0 +1,359 @@
+package net.sourceforge.javafpdf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Builder for page content streams. Operators and their operands are written
+ * straight into a growable byte buffer that is reused from page to page, so
+ * drawing does not go through <code>String.format()</code> or create a byte
+ * array per line.
+ * <p>
+ * Numbers are written the way <code>String.format(Locale.ENGLISH, "%.2f")</code>
+ * writes them, so the output is byte-identical to the formatted strings used
+ * before.
+ *
+ * @since 1.5.3
+ */
+public class ContentStream {
+    private static final double[] SCALE = {1, 10, 100, 1000};
+
+    private static final String[] FORMAT = {"%.0f", "%.1f", "%.2f", "%.3f"};
+
+    private byte[] buf;
+
+    private int count;
+
+    private byte[] alias;
+
+    private int[] aliasOffsets = new int[0];
+
+    private int aliasCount;
+
+    /**
+     * Constructor. Creates an empty content stream.
+     */
+    public ContentStream() {
+        this(4096);
+    }
+
+    /**
+     * Constructor. Creates an empty content stream.
+     *
+     * @param size the initial capacity in bytes
+     */
+    public ContentStream(final int size) {
+        this.buf = new byte[size];
+    }
+
+    /**
+     * Discards the content, keeping the allocated buffer.
+     */
+    public void reset() {
+        this.count = 0;
+        this.aliasCount = 0;
+    }
+
+    /**
+     * Sets a text, such as the alias for the total number of pages, whose
+     * occurrences are recorded as they are written, so that they can be
+     * replaced later without searching the content.
+     *
+     * @param alias the text, or <code>null</code> to record nothing
+     */
+    public void setAlias(final String alias) {
+        this.alias = ((alias == null) || alias.isEmpty()) ? null : new ContentStream(alias.length()).write(alias).toByteArray();
+    }
+
+    /**
+     * Returns where the alias was written. The alias may change while
+     * writing, so each occurrence is recorded with the length of the alias
+     * it was written with.
+     *
+     * @return the offset and length of each occurrence of the alias, in
+     *         ascending order of offset: offsets at even indexes, each
+     *         followed by its length.
+     */
+    public int[] getAliasOffsets() {
+        return Arrays.copyOf(this.aliasOffsets, this.aliasCount);
+    }
+
+    /**
+     * Records the occurrences of the alias in the bytes written from the
+     * given offset on.
+     */
+    private void findAlias(final int from) {
+        final byte[] a = this.alias;
+        if (a == null) {
+            return;
+        }
+        final int last = this.count - a.length;
+        search:
+        for (int i = from; i <= last; i++) {
+            for (int j = 0; j < a.length; j++) {
+                if (this.buf[i + j] != a[j]) {
+                    continue search;
+                }
+            }
+            if (this.aliasCount == this.aliasOffsets.length) {
+                this.aliasOffsets = Arrays.copyOf(this.aliasOffsets, Math.max(8, this.aliasCount << 1));
+            }
+            this.aliasOffsets[this.aliasCount++] = i;
+            this.aliasOffsets[this.aliasCount++] = a.length;
+            i += a.length - 1;
+        }
+    }
+
+    /**
+     * @return the number of bytes written.
+     */
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * @return a copy of the content.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(this.buf, this.count);
+    }
+
+    /**
+     * Writes the content to a stream.
+     *
+     * @param out the stream
+     * @throws IOException if the stream can not be written.
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        out.write(this.buf, 0, this.count);
+    }
+
+    /**
+     * @return the content as an ISO-8859-1 string.
+     */
+    @Override
+    public String toString() {
+        final char[] chars = new char[this.count];
+        for (int i = 0; i < this.count; i++) {
+            chars[i] = (char) (this.buf[i] & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    private void ensure(final int n) {
+        if (this.count + n > this.buf.length) {
+            this.buf = Arrays.copyOf(this.buf, Math.max(this.buf.length << 1, this.count + n));
+        }
+    }
+
+    /**
+     * Writes a single character, which must be in the ISO-8859-1 range.
+     */
+    public ContentStream write(final char c) {
+        ensure(1);
+        this.buf[this.count++] = (byte) c;
+        return this;
+    }
+
+    /**
+     * Writes a string as WinAnsi: characters below 256 as they are, others
+     * as their WinAnsi code, or as <code>?</code> if there is none.
+     */
+    public ContentStream write(final String s) {
+        final int l = s.length();
+        final int start = this.count;
+        ensure(l);
+        for (int i = 0; i < l; i++) {
+            final char c = s.charAt(i);
+            if (c < 256) {
+                this.buf[this.count++] = (byte) c;
+            } else {
+                this.buf[this.count++] = (byte) WinAnsi.encode(c);
+                if (Character.isHighSurrogate(c) && (i + 1 < l) && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    i++;
+                }
+            }
+        }
+        this.findAlias(start);
+        return this;
+    }
+
+    /**
+     * Ends the current line.
+     */
+    public ContentStream newline() {
+        return this.write('\n');
+    }
+
+    /**
+     * Writes a line of content as {@link FPDF#_out(String)} does.
+     */
+    public ContentStream writeLine(final String s) {
+        return this.write(s).newline();
+    }
+
+    /**
+     * Writes an integer.
+     */
+    public ContentStream writeInt(final long v) {
+        if (v < 0) {
+            if (v == Long.MIN_VALUE) {
+                return this.write(Long.toString(v));
+            }
+            this.write('-');
+            return this.writeDigits(-v, 1);
+        }
+        return this.writeDigits(v, 1);
+    }
+
+    /**
+     * Writes a number with two decimals, like <code>%.2f</code>.
+     */
+    public ContentStream writeFixed2(final double v) {
+        return this.writeFixed(v, 2);
+    }
+
+    /**
+     * Writes a number with three decimals, like <code>%.3f</code>.
+     */
+    public ContentStream writeFixed3(final double v) {
+        return this.writeFixed(v, 3);
+    }
+
+    /**
+     * Writes a number with the given number of decimals (at most three),
+     * rounding half-up like {@link java.util.Formatter}.
+     */
+    public ContentStream writeFixed(final double v, final int decimals) {
+        final double a = Math.abs(v);
+        // Outside of this range, or close to a tie, the decimal digits the
+        // Formatter rounds may differ from the binary value; let it decide.
+        if (a < 1e6) {
+            final double scaled = a * SCALE[decimals];
+            final double floor = Math.floor(scaled);
+            final double frac = scaled - floor;
+            if (Math.abs(frac - 0.5) > 1e-6) {
+                final long r = (long) floor + ((frac > 0.5) ? 1 : 0);
+                if (Double.compare(v, 0.0) < 0) {
+                    this.write('-');
+                }
+                final long unit = (long) SCALE[decimals];
+                this.writeDigits(r / unit, 1);
+                if (decimals > 0) {
+                    this.write('.');
+                    this.writeDigits(r % unit, decimals);
+                }
+                return this;
+            }
+        }
+        return this.write(String.format(Locale.ENGLISH, FORMAT[decimals], v));
+    }
+
+    private ContentStream writeDigits(long v, final int minDigits) {
+        int digits = 1;
+        for (long t = v / 10; t > 0; t /= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, minDigits);
+        ensure(digits);
+        for (int i = this.count + digits - 1; i >= this.count; i--) {
+            this.buf[i] = (byte) ('0' + (v % 10));
+            v /= 10;
+        }
+        this.count += digits;
+        return this;
+    }
+
+    /**
+     * Writes a coordinate pair followed by a space.
+     */
+    private ContentStream point(final double x, final double y) {
+        return this.writeFixed2(x).write(' ').writeFixed2(y).write(' ');
+    }
+
+    /**
+     * Begin a new subpath: <code>x y m</code>.
+     */
+    public ContentStream moveTo(final double x, final double y) {
+        return this.point(x, y).write('m');
+    }
+
+    /**
+     * Append a straight line segment: <code>x y l</code>.
+     */
+    public ContentStream lineTo(final double x, final double y) {
+        return this.point(x, y).write('l');
+    }
+
+    /**
+     * Append a bezier curve: <code>x1 y1 x2 y2 x3 y3 c</code>.
+     */
+    public ContentStream curveTo(final double x1, final double y1, final double x2, final double y2, final double x3, final double y3) {
+        return this.point(x1, y1).point(x2, y2).point(x3, y3).write('c');
+    }
+
+    /**
+     * Append a rectangle: <code>x y w h re</code>.
+     */
+    public ContentStream re(final double x, final double y, final double w, final double h) {
+        return this.point(x, y).point(w, h).write("re");
+    }
+
+    /**
+     * Concatenate a matrix to the current transformation matrix:
+     * <code>a b c d e f cm</code>.
+     */
+    public ContentStream cm(final double a, final double b, final double c, final double d, final double e, final double f) {
+        return this.point(a, b).point(c, d).point(e, f).write("cm");
+    }
+
+    /**
+     * Move the text position: <code>x y Td</code>.
+     */
+    public ContentStream Td(final double x, final double y) {
+        return this.point(x, y).write("Td");
+    }
+
+    /**
+     * Show a text string: <code>(text) Tj</code>. Backslashes and
+     * parentheses are escaped, and the text is encoded as WinAnsi.
+     */
+    public ContentStream Tj(final String txt) {
+        this.write('(');
+        final int start = this.count;
+        if (txt != null) {
+            final int l = txt.length();
+            for (int i = 0; i < l; i++) {
+                final char c = txt.charAt(i);
+                if ((c == '\\') || (c == '(') || (c == ')')) {
+                    this.write('\\').write(c);
+                } else if (c < 256) {
+                    this.write(c);
+                } else {
+                    this.write((char) WinAnsi.encode(c));
+                    if (Character.isHighSurrogate(c) && (i + 1 < l) && Character.isLowSurrogate(txt.charAt(i + 1))) {
+                        i++;
+                    }
+                }
+            }
+        }
+        this.findAlias(start);
+        return this.write(") Tj");
+    }
+
+    /**
+     * Set the word spacing: <code>ws Tw</code>.
+     */
+    public ContentStream Tw(final double ws) {
+        return this.writeFixed3(ws).write(" Tw");
+    }
+
+    /**
+     * Set the line width: <code>w w</code>.
+     */
+    public ContentStream w(final double w) {
+        return this.writeFixed2(w).write(" w");
+    }
+}
@@ -25,25 +25,46 @@ import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 import javax.imageio.ImageIO;
 
 import net.sourceforge.javafpdf.util.Compressor;
+import net.sourceforge.javafpdf.util.OutputBuffer;
+import net.sourceforge.javafpdf.util.PngChunkReader;
 import org.apache.sanselan.ImageReadException;
 
 /**
@@ -56,9 +77,16 @@ import org.apache.sanselan.ImageReadException;
  */
 public abstract class FPDF {
     /**
-     * Character width. Used to be global.
+     * Character width. Used to be global. Shared by all instances; entries
+     * are never modified once loaded.
      */
-    private static Map<String, Charwidths> charwidths;
+    private static final ConcurrentMap<String, Charwidths> charwidths = new ConcurrentHashMap<>();
+
+    /**
+     * Keys of the core fonts, as used for the widths files.
+     */
+    private static final String[] CORE_FONT_KEYS = {"courier", "courierB", "courierI", "courierBI", "helvetica", "helveticaB",
+            "helveticaI", "helveticaBI", "times", "timesB", "timesI", "timesBI", "symbol", "zapfdingbats"};
 
     /**
      * Point. Base unit.
@@ -80,16 +108,35 @@ public abstract class FPDF {
      */
     public static final float CM = (72 / 2.54f);
 
-    static {
-        charwidths = new HashMap<>();
+    protected static Charwidths getCharwidths(final String font) throws IOException {
+        final Charwidths cw = charwidths.get(font);
+        if (cw != null) {
+            return cw;
+        }
+        try {
+            return charwidths.computeIfAbsent(font, key -> {
+                try {
+                    return new Charwidths(key);
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
-    protected static Charwidths getCharwidths(final String font) throws IOException {
-        if (charwidths.get(font) == null) {
-            final Charwidths font_charwidths = new Charwidths(font);
-            charwidths.put(font, font_charwidths);
+    /**
+     * Loads the character widths of all core fonts, so that the first
+     * document using a font does not have to read them. Safe to call from any
+     * thread, any number of times.
+     *
+     * @throws IOException if a widths file could not be read.
+     */
+    public static void preloadCoreFonts() throws IOException {
+        for (final String key : CORE_FONT_KEYS) {
+            getCharwidths(key);
         }
-        return charwidths.get(font);
     }
 
     /**
@@ -105,18 +152,50 @@ public abstract class FPDF {
     /**
      * array of object offsets
      */
-    protected Map<Integer, Integer> offsets;
+    protected Map<Integer, Long> offsets;
 
     /**
-     * buffer holding in-memory PDF
+     * whether objects other than streams are packed into object streams
      */
-    protected List<byte[]> buffer;
+    protected boolean objectStreams;
+
+    /**
+     * object being written, held back until it is known whether it can go
+     * into an object stream
+     */
+    protected ContentStream object;
+
+    /**
+     * number of the object being held back
+     */
+    protected int objectNumber;
+
+    /**
+     * objects waiting to be packed into object streams, by object number
+     */
+    protected Map<Integer, byte[]> packedObjects;
+
+    /**
+     * object stream number and index of the packed objects
+     */
+    protected Map<Integer, int[]> packedOffsets;
+
+    /**
+     * buffer holding in-memory PDF, or the part not yet written in streaming
+     * mode
+     */
+    protected OutputBuffer buffer;
 
     /**
      * array containing pages
      */
     protected Map<Integer, List<byte[]>> pages;
 
+    /**
+     * content of the current page
+     */
+    protected ContentStream content;
+
     /**
      * current document state
      */
@@ -127,6 +206,36 @@ public abstract class FPDF {
      */
     protected boolean compress;
 
+    /**
+     * whether PNG chunk checksums are verified
+     */
+    protected boolean checkPngCrc;
+
+    /**
+     * executor compressing page content in parallel, or null
+     */
+    protected Executor compressionExecutor;
+
+    /**
+     * compression level and strategy
+     */
+    protected Compressor compressor;
+
+    /**
+     * compressed page content not yet written, in page order (streaming mode)
+     */
+    protected Map<Integer, CompletableFuture<byte[]>> pendingPages = new LinkedHashMap<>();
+
+    /**
+     * Maximum number of compressed pages kept waiting in streaming mode.
+     */
+    private static final int MAX_PENDING_PAGES = 64;
+
+    /**
+     * Maximum number of objects packed into one object stream.
+     */
+    private static final int OBJECTS_PER_STREAM = 100;
+
     /**
      * default orientation
      */
@@ -227,6 +336,36 @@ public abstract class FPDF {
      */
     protected Map<String, Map<String, Object>> images;
 
+    /**
+     * image names mapped to the name of an identical image in images
+     */
+    protected Map<String, String> imageAliases;
+
+    /**
+     * content hashes of the images mapped to their names in images
+     */
+    protected Map<String, String> imageKeys;
+
+    /**
+     * object numbers of the soft masks and palettes written, by content hash
+     */
+    protected Map<String, Integer> imageObjects;
+
+    /**
+     * cache of parsed images shared with other documents, or null
+     */
+    protected ImageCache imageCache;
+
+    /**
+     * recorded templates
+     */
+    protected Map<Integer, Map<String, Object>> templates;
+
+    /**
+     * page state saved while a template is recorded, or null
+     */
+    private TemplateRecording templateRecording;
+
     /**
      * array of links in pages
      */
@@ -292,6 +431,16 @@ public abstract class FPDF {
      */
     protected float ws;
 
+    /**
+     * character spacing set by CellFit, in points
+     */
+    protected float charSpacing;
+
+    /**
+     * horizontal scaling set by CellFit, in percent
+     */
+    protected float horizontalScaling;
+
     /**
      * automatic page breaking
      */
@@ -302,6 +451,26 @@ public abstract class FPDF {
      */
     protected float pageBreakTrigger;
 
+    /**
+     * whether justified text is broken with the optimal fit
+     */
+    protected boolean optimalLineBreaks;
+
+    /**
+     * least number of lines of a MultiCell at the top of a page
+     */
+    protected int widows = 1;
+
+    /**
+     * least number of lines of a MultiCell at the bottom of a page
+     */
+    protected int orphans = 1;
+
+    /**
+     * working arrays of the optimal line breaking
+     */
+    private final LineBreaker.Scratch lineBreakScratch = new LineBreaker.Scratch();
+
     /**
      * flag set when processing footer
      */
@@ -352,6 +521,23 @@ public abstract class FPDF {
      */
     protected String aliasNbPages;
 
+    /**
+     * offsets and lengths of the alias for total number of pages in the
+     * content of each page using it
+     */
+    protected Map<Integer, int[]> aliasOffsets;
+
+    /**
+     * object number of the form XObject showing the total number of pages
+     * in streaming mode, or 0
+     */
+    protected int aliasObject;
+
+    /**
+     * whether the form XObject showing the total number of pages is used
+     */
+    protected boolean aliasObjectUsed;
+
     /**
      * PDF version number
      */
@@ -433,16 +619,24 @@ public abstract class FPDF {
         // Initialization of properties
         this.page = 0;
         this.n = 2;
-        this.buffer = new ArrayList<>();
+        this.buffer = new OutputBuffer();
         this.pages = new HashMap<>();
+        this.content = new ContentStream();
         this.orientationChanges = new HashMap<>();
         this.state = PDFCreationState.NONE;
         this.fonts = new HashMap<>();
         this.diffs = new HashMap<>();
         this.images = new HashMap<>();
+        this.imageAliases = new HashMap<>();
+        this.imageKeys = new HashMap<>();
+        this.imageObjects = new HashMap<>();
+        this.templates = new HashMap<>();
         this.links = new HashMap<>();
         this.pageLinks = new HashMap<>();
         this.offsets = new HashMap<>();
+        this.packedObjects = new LinkedHashMap<>();
+        this.packedOffsets = new HashMap<>();
+        this.aliasOffsets = new HashMap<>();
         this.inFooter = false;
         this.lastH = 0;
         this.fontFamily = null;
@@ -454,6 +648,8 @@ public abstract class FPDF {
         this.textColor = "0 g";
         this.colorFlag = false;
         this.ws = 0;
+        this.charSpacing = 0;
+        this.horizontalScaling = 100;
         // Standard fonts
         this.coreFonts = new HashMap<>();
         this.coreFonts.put("courier", "Courier"); //$NON-NLS-1$//$NON-NLS-2$
@@ -505,6 +701,7 @@ public abstract class FPDF {
         this.setDisplayMode(Zoom.FULLWIDTH, Layout.DEFAULT);
         // Enable compression
         this.compress = false; // NOTE default was: true
+        this.compressor = Compressor.DEFAULT;
         // Set default PDF version number
         this.pdfVersion = "1.3"; //$NON-NLS-1$
     }
@@ -512,6 +709,7 @@ public abstract class FPDF {
     protected void _beginpage(final Orientation orientation) {
         this.page++;
         this.pages.put(this.page, new ArrayList<>());
+        this.content.reset();
         this.state = PDFCreationState.PAGE;
         this.x = this.lMargin;
         this.y = this.tMargin;
@@ -538,19 +736,76 @@ public abstract class FPDF {
         }
     }
 
+    /**
+     * Shows a text with its baseline starting at the given position. In
+     * streaming mode the total number of pages is not known yet, so each
+     * occurrence of its alias is drawn by a form XObject written at close,
+     * and the text around it is placed as if the alias were shown. The page
+     * content can then be written out when the page is finished.
+     *
+     * @param x   the abscissa
+     * @param y   the ordinate of the baseline
+     * @param txt the text
+     */
+    protected void _text(final float x, final float y, final String txt) {
+        final ContentStream s = this.content;
+        final float k = this.k;
+        final String alias = this.aliasNbPages;
+        this.currentFont.addUsed(txt);
+        if (!this.buffer.isStreaming() || (alias == null) || alias.isEmpty() || (txt == null) || !txt.contains(alias)) {
+            s.write("BT ").Td(x * k, (this.h - y) * k).write(' ').Tj(txt).write(" ET"); //$NON-NLS-1$//$NON-NLS-2$
+            return;
+        }
+        this.aliasObjectUsed = true;
+        float dx = 0;
+        int from = 0;
+        while (from < txt.length()) {
+            if (from > 0) {
+                s.write(' ');
+            }
+            if (txt.startsWith(alias, from)) {
+                s.write("q ").cm(1, 0, 0, 1, (x + dx) * k, (this.h - y) * k).write(" /NB Do Q"); //$NON-NLS-1$//$NON-NLS-2$
+                dx += this._textwidth(alias);
+                from += alias.length();
+            } else {
+                final int next = txt.indexOf(alias, from);
+                final String part = txt.substring(from, (next < 0) ? txt.length() : next);
+                s.write("BT ").Td((x + dx) * k, (this.h - y) * k).write(' ').Tj(part).write(" ET"); //$NON-NLS-1$//$NON-NLS-2$
+                dx += this._textwidth(part);
+                from += part.length();
+            }
+        }
+    }
+
+    /**
+     * @return the advance of a text shown with the current font, word
+     *         spacing, character spacing and horizontal scaling.
+     */
+    protected float _textwidth(final String txt) {
+        int spaces = 0;
+        for (int i = 0; i < txt.length(); i++) {
+            if (txt.charAt(i) == ' ') {
+                spaces++;
+            }
+        }
+        return (this.getStringWidth(txt) + this.ws * spaces + this.charSpacing / this.k * txt.length())
+                * this.horizontalScaling / 100;
+    }
+
 	/** Underline text */
-	protected String _dounderline(final float x, final float y, final String txt) {
+	protected void _dounderline(final float x, final float y, final String txt) {
 		float w = this.getStringWidth(txt) + this.ws * (txt.split(" ")).length; 
-		return String.format(
-				Locale.ENGLISH,
-				"%.2f %.2f %.2f %.2f re f",
-                x * this.k,
+		this.content.re(x * this.k,
                 this.h - (y - this.currentFont.getUp() / 1000 * this.fontSize) * this.k,
-                w * this.k, -this.currentFont.getUt() / 1000 * this.fontSizePt);
+                w * this.k, -this.currentFont.getUt() / 1000 * this.fontSizePt).write(" f");
 	}
 
-    protected void _enddoc() {
-        this._putheader();
+    protected void _enddoc() throws IOException {
+        if (!this.buffer.isStreaming()) {
+            // In streaming mode the header went out with the first page
+            this._putheader();
+        }
+        this._putpendingpages(true);
         this._putpages();
         this._putresources();
         // Info
@@ -558,15 +813,19 @@ public abstract class FPDF {
         this._out("<<"); //$NON-NLS-1$
         this._putinfo();
         this._out(">>"); //$NON-NLS-1$
-        this._out("endobj"); //$NON-NLS-1$
+        this._endobj();
         // Catalog
         this._newobj();
         this._out("<<"); //$NON-NLS-1$
         this._putcatalog();
         this._out(">>"); //$NON-NLS-1$
-        this._out("endobj"); //$NON-NLS-1$
+        this._endobj();
+        if (this.objectStreams) {
+            this._putxrefstream();
+            return;
+        }
         // Cross-ref
-        final int o = this._length(this.buffer);
+        final long o = this._offset();
         this._out("xref"); //$NON-NLS-1$
         this._out("0 " + (this.n + 1)); //$NON-NLS-1$
         this._out("0000000000 65535 f "); //$NON-NLS-1$
@@ -580,16 +839,151 @@ public abstract class FPDF {
         this._puttrailer();
         this._out(">>"); //$NON-NLS-1$
         this._out("startxref"); //$NON-NLS-1$
-        this._out(Integer.toString(o));
+        this._out(Long.toString(o));
         this._out("%%EOF"); //$NON-NLS-1$
         this.state = PDFCreationState.FINISHED;
+        this.buffer.flush();
     }
 
     /**
-     * End of page contents
+     * Writes the object streams and a cross-reference stream in place of the
+     * cross-reference table and trailer.
      */
-    protected void _endpage() {
+    protected void _putxrefstream() throws IOException {
+        final int root = this.n;
+        this._putobjectstreams();
+        final long o = this._offset();
+        final int size = this.n + 2;
+        // Entries: type, offset or object stream number, generation or index
+        int w = 1;
+        while ((o >> (8 * w)) > 0) {
+            w++;
+        }
+        final byte[] xref = new byte[size * (w + 3)];
+        for (int i = 0; i < size; i++) {
+            final int pos = i * (w + 3);
+            long field2;
+            int field3;
+            if (i == 0) {
+                xref[pos] = 0;
+                field2 = 0;
+                field3 = 0xFFFF;
+            } else if (this.packedOffsets.containsKey(i)) {
+                xref[pos] = 2;
+                field2 = this.packedOffsets.get(i)[0];
+                field3 = this.packedOffsets.get(i)[1];
+            } else {
+                xref[pos] = 1;
+                field2 = (i == size - 1) ? o : this.offsets.get(i);
+                field3 = 0;
+            }
+            for (int j = w; j > 0; j--) {
+                xref[pos + j] = (byte) field2;
+                field2 >>= 8;
+            }
+            xref[pos + w + 1] = (byte) (field3 >> 8);
+            xref[pos + w + 2] = (byte) field3;
+        }
+        final byte[] data = gzcompress(xref);
+        this._newobj();
+        this._out("<</Type /XRef /Size " + size + " /W [1 " + w + " 2]"); //$NON-NLS-1$//$NON-NLS-2$//$NON-NLS-3$
+        this._out("/Root " + root + " 0 R /Info " + (root - 1) + " 0 R"); //$NON-NLS-1$//$NON-NLS-2$//$NON-NLS-3$
+        this._out("/Filter /FlateDecode /Length " + data.length + ">>"); //$NON-NLS-1$//$NON-NLS-2$
+        this._putstream(data);
+        this._endobj();
+        this._out("startxref"); //$NON-NLS-1$
+        this._out(Long.toString(o));
+        this._out("%%EOF"); //$NON-NLS-1$
+        this.state = PDFCreationState.FINISHED;
+        this.buffer.flush();
+    }
+
+    /**
+     * Writes the packed objects into compressed object streams.
+     */
+    protected void _putobjectstreams() {
+        while (!this.packedObjects.isEmpty()) {
+            final int stream = this.n + 1;
+            final StringBuilder header = new StringBuilder();
+            final ByteArrayOutputStream objects = new ByteArrayOutputStream();
+            final Iterator<Entry<Integer, byte[]>> it = this.packedObjects.entrySet().iterator();
+            int count = 0;
+            while ((count < OBJECTS_PER_STREAM) && it.hasNext()) {
+                final Entry<Integer, byte[]> object = it.next();
+                header.append(object.getKey()).append(' ').append(objects.size()).append(' ');
+                objects.write(object.getValue(), 0, object.getValue().length);
+                this.packedOffsets.put(object.getKey(), new int[] {stream, count++});
+                it.remove();
+            }
+            header.append('\n');
+            final byte[] first = header.toString().getBytes(StandardCharsets.ISO_8859_1);
+            final byte[] content = new byte[first.length + objects.size()];
+            System.arraycopy(first, 0, content, 0, first.length);
+            System.arraycopy(objects.toByteArray(), 0, content, first.length, objects.size());
+            final byte[] data = gzcompress(content);
+            this._newobj();
+            this._out("<</Type /ObjStm /N " + count //$NON-NLS-1$
+                    + " /First " + first.length + " /Filter /FlateDecode /Length " + data.length + ">>"); //$NON-NLS-1$//$NON-NLS-2$//$NON-NLS-3$
+            this._putstream(data);
+            this._endobj();
+        }
+    }
+
+    /**
+     * End of page contents. In streaming mode the page content is written
+     * out immediately, the page dictionary follows when the document is
+     * closed.
+     *
+     * @throws IOException if the page can not be written to the stream.
+     */
+    protected void _endpage() throws IOException {
+        if (this.templateRecording != null) {
+            throw new PDFCreationError("Template recording not ended"); //$NON-NLS-1$
+        }
         this.state = PDFCreationState.OPENED;
+        this.pages.get(this.page).add(this.content.toByteArray());
+        final int[] aliases = this.content.getAliasOffsets();
+        if (aliases.length > 0) {
+            this.aliasOffsets.put(this.page, aliases);
+        }
+        // Pages with the alias written as content, not drawn by _text(), wait
+        // for the end of the document
+        if (this.buffer.isStreaming() && (aliases.length == 0)) {
+            final List<byte[]> content = this.pages.remove(this.page);
+            if (this.compress && (this.compressionExecutor != null)) {
+                this.pendingPages.put(this.page, this._compresspage(content));
+                this._putpendingpages(false);
+            } else {
+                // Page content object number matches the one used by _putpages()
+                this._newobj(2 + 2 * this.page);
+                this._putpagecontent(content);
+            }
+            this.buffer.flush();
+        }
+    }
+
+    /**
+     * Starts compressing the content of a page on the compression executor.
+     */
+    protected CompletableFuture<byte[]> _compresspage(final List<byte[]> content) {
+        return CompletableFuture.supplyAsync(() -> this._pagestream(content), this.compressionExecutor);
+    }
+
+    /**
+     * Writes the compressed pages that are ready, in page order. Waits for
+     * them if <code>all</code> is set or too many pages are pending.
+     */
+    protected void _putpendingpages(final boolean all) {
+        final Iterator<Entry<Integer, CompletableFuture<byte[]>>> it = this.pendingPages.entrySet().iterator();
+        while (it.hasNext()) {
+            final Entry<Integer, CompletableFuture<byte[]>> pending = it.next();
+            if (!all && !pending.getValue().isDone() && (this.pendingPages.size() <= MAX_PENDING_PAGES)) {
+                break;
+            }
+            this._newobj(2 + 2 * pending.getKey());
+            this._putpagestream(pending.getValue().join());
+            it.remove();
+        }
     }
 
     /**
@@ -667,27 +1061,55 @@ public abstract class FPDF {
      */
     protected void _newobj() {
         this.n++;
-        this.offsets.put(this.n, this._length(this.buffer));
-        this._out(this.n + " 0 obj"); //$NON-NLS-1$
+        this._newobj(this.n);
     }
 
-    protected int _length(final List<byte[]> buffer) {
-        int len = 0;
-        for (final byte[] b : buffer) {
-            len += b.length;
+    /**
+     * Begin an object with a reserved number
+     *
+     * @param n the object number
+     */
+    protected void _newobj(final int n) {
+        if (this.objectStreams) {
+            // Held back until _putstream() or _endobj()
+            if (this.object == null) {
+                this.object = new ContentStream(256);
+            }
+            this.object.reset();
+            this.objectNumber = n;
+            return;
         }
-        return len;
+        this.offsets.put(n, this._offset());
+        this._out(n + " 0 obj"); //$NON-NLS-1$
+    }
+
+    /**
+     * End an object. An object that is not a stream is packed into an object
+     * stream if they are enabled.
+     */
+    protected void _endobj() {
+        if (this.objectNumber > 0) {
+            this.packedObjects.put(this.objectNumber, this.object.toByteArray());
+            this.objectNumber = 0;
+            return;
+        }
+        this._out("endobj"); //$NON-NLS-1$
+    }
+
+    /**
+     * Current position in the document, counting what has already been
+     * written to the stream in streaming mode.
+     */
+    protected long _offset() {
+        return this.buffer.position();
     }
 
     protected void _out(final String s) {
         // Add a line to the document
         if (this.state == PDFCreationState.PAGE) {
-            try {
-                this.pages.get(this.page).add((s + '\n').getBytes("ISO-8859-1"));
-            } catch (UnsupportedEncodingException e) {
-                this.pages.get(this.page).add((s + '\n').getBytes());
-                e.printStackTrace();
-            }
+            this.content.writeLine(s);
+        } else if (this.objectNumber > 0) {
+            this.object.writeLine(s.replace('€', (char) 128));
         } else {
             /*
              * NOTE This is a hack put in place because Java converts to true
@@ -698,15 +1120,32 @@ public abstract class FPDF {
              * probably not go through this method.
              */
             try {
-                this.buffer.add((s.replace('€', (char) 128) + '\n').getBytes("ISO-8859-1")); //$NON-NLS-1$
+                this.buffer.write((s.replace('€', (char) 128) + '\n').getBytes("ISO-8859-1")); //$NON-NLS-1$
             } catch (final UnsupportedEncodingException e) {
-                this.buffer.add((s.replace('€', (char) 128) + '\n').getBytes());
+                this.buffer.write((s.replace('€', (char) 128) + '\n').getBytes());
                 e.printStackTrace();
             }
         }
     }
 
+    /**
+     * Extract info from a JPEG file. Baseline and progressive grayscale or
+     * RGB files are embedded as they are; anything else is decoded and
+     * converted.
+     */
     protected Map<String, Object> _parsejpg(String fileName, byte[] data) {
+		int[] sof = _readjpgsof(data);
+		if ((sof != null) && (sof[0] == 8) && ((sof[3] == 1) || (sof[3] == 3))) {
+			Map<String, Object> image = new HashMap<>();
+			image.put("w", sof[2]);
+			image.put("h", sof[1]);
+			image.put("cs", (sof[3] == 1) ? "DeviceGray" : "DeviceRGB");
+			image.put("bpc", 8);
+			image.put("f", "DCTDecode");
+			image.put("i", this.images.size() + 1);
+			image.put("data", data);
+			return image;
+		}
 		BufferedImage img = null;
 		try {
             // Image quality isn't the best this way but it fully supports CMYK and YCCK
@@ -745,119 +1184,260 @@ public abstract class FPDF {
 		}
 	}
 
-    /**
-     * Extract info from a PNG file
-     */
-    protected Map<String, Object> _parsepng(String fileName, byte[] imageData) throws IOException {
-		try (ByteArrayInputStream f = new ByteArrayInputStream(imageData)) {
-			// Check signature
-			char[] sig = new char[] { 137, 'P', 'N', 'G', 13, 10, 26, 10 };
-			for (int i = 0; i < sig.length; i++) {
-				int in = f.read();
-				char c = (char) in;
-				if (c != sig[i]) {
-					throw new IOException("Not a PNG file: " + fileName); 
-				}
-			}
-			this._fread(f, 4);
-			// Read header chunk
-			char[] chunk = new char[] { 'I', 'H', 'D', 'R' };
-			for (int i = 0; i < chunk.length; i++) {
-				int in = f.read();
-				char c = (char) in;
-				if (c != chunk[i]) {
-					throw new IOException("Not a PNG file: " + fileName); 
-				}
+	/**
+	 * Reads the frame header of a baseline or progressive Huffman coded JPEG.
+	 * 
+	 * @return precision, height, width and number of components, or
+	 *         <code>null</code> if there is no such frame header.
+	 */
+	private static int[] _readjpgsof(byte[] data) {
+		if ((data.length < 4) || ((data[0] & 0xFF) != 0xFF) || ((data[1] & 0xFF) != 0xD8)) {
+			return null;
+		}
+		int pos = 2;
+		while (pos + 4 <= data.length) {
+			if ((data[pos] & 0xFF) != 0xFF) {
+				return null;
 			}
-			int w = this._freadint(f);
-			int h = this._freadint(f);
-			int bpc = f.read();
-			if (bpc > 8) {
-				throw new IOException("16-bit depth not supported: " + fileName); 
+			int marker = data[pos + 1] & 0xFF;
+			if ((marker == 0xFF) || (marker == 0x01) || ((marker >= 0xD0) && (marker <= 0xD7))) {
+				// Fill byte or marker without a segment
+				pos += (marker == 0xFF) ? 1 : 2;
+				continue;
 			}
-			int ct = f.read();
-			String colspace;
-			if (ct == 0) {
-				colspace = "DeviceGray"; 
-			} else if (ct == 2) {
-				colspace = "DeviceRGB"; 
-			} else if (ct == 3) {
-				colspace = "Indexed";
-			} else if (ct == 6) {
-				// RGBA needs handled separately
-				return _parsepngWithAlpha(fileName, imageData);
-			} else {
-				throw new IOException("Alpha channel not supported for grayscale PNG images: " + fileName); 
+			if ((marker == 0xD9) || (marker == 0xDA)) {
+				// End of image or start of scan before any frame header
+				return null;
 			}
-			if (f.read() != 0) {
-				throw new IOException("Unknown compression method: " + fileName); 
+			int length = ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+			if ((marker == 0xC0) || (marker == 0xC1) || (marker == 0xC2)) {
+				if ((length < 8) || (pos + 10 > data.length)) {
+					return null;
+				}
+				int h = ((data[pos + 5] & 0xFF) << 8) | (data[pos + 6] & 0xFF);
+				int w = ((data[pos + 7] & 0xFF) << 8) | (data[pos + 8] & 0xFF);
+				if ((h == 0) || (w == 0)) {
+					// Height defined by a DNL marker
+					return null;
+				}
+				return new int[] { data[pos + 4] & 0xFF, h, w, data[pos + 9] & 0xFF };
 			}
-			if (f.read() != 0) {
-				throw new IOException("Unknown filter method: " + fileName); 
+			if ((marker >= 0xC3) && (marker <= 0xCF) && (marker != 0xC4) && (marker != 0xC8) && (marker != 0xCC)) {
+				// Lossless, hierarchical or arithmetic coding
+				return null;
 			}
-			if (f.read() != 0) {
-				throw new IOException("Interlacing not supported: " + fileName); 
+			pos += 2 + length;
+		}
+		return null;
+	}
+
+    /**
+     * Extract info from a PNG file
+     */
+    protected Map<String, Object> _parsepng(String fileName, byte[] imageData) throws IOException {
+		return this._parsepng(fileName, ByteBuffer.wrap(imageData));
+	}
+
+    /**
+     * Extract info from a PNG file held in a buffer, for instance a memory
+     * mapped file.
+     */
+    protected Map<String, Object> _parsepng(String fileName, ByteBuffer imageData) throws IOException {
+		PngChunkReader f;
+		try {
+			f = new PngChunkReader(imageData, this.checkPngCrc);
+		} catch (IOException e) {
+			throw new IOException("Not a PNG file: " + fileName, e);
+		}
+		// Read header chunk
+		if (!f.next() || !f.getType().equals("IHDR")) {
+			throw new IOException("Not a PNG file: " + fileName);
+		}
+		ByteBuffer header = f.getData();
+		if (header.remaining() < 13) {
+			throw new IOException("Not a PNG file: " + fileName);
+		}
+		int w = header.getInt();
+		int h = header.getInt();
+		int bpc = header.get() & 0xFF;
+		if (bpc > 8) {
+			throw new IOException("16-bit depth not supported: " + fileName); 
+		}
+		int ct = header.get() & 0xFF;
+		String colspace;
+		if ((ct == 0) || (ct == 4)) {
+			colspace = "DeviceGray"; 
+		} else if ((ct == 2) || (ct == 6)) {
+			colspace = "DeviceRGB"; 
+		} else if (ct == 3) {
+			colspace = "Indexed";
+		} else {
+			throw new IOException("Unknown color type: " + fileName); 
+		}
+		if (header.get() != 0) {
+			throw new IOException("Unknown compression method: " + fileName); 
+		}
+		if (header.get() != 0) {
+			throw new IOException("Unknown filter method: " + fileName); 
+		}
+		if (header.get() != 0) {
+			if (ct >= 4) {
+				// Interlaced images with alpha channel are converted by ImageIO
+				ByteBuffer all = imageData.duplicate();
+				byte[] bytes = new byte[all.remaining()];
+				all.get(bytes);
+				return _parsepngWithAlpha(fileName, bytes);
 			}
-			this._fread(f, 4);
-			StringBuilder sb = new StringBuilder();
-			sb.append("/DecodeParms <</Predictor 15 /Colors ").append( 
-					ct == 2 ? 3 : 1).append(" /BitsPerComponent ").append(bpc) 
-					.append(" /Columns ").append(w).append(">>"); 
-			String parms = sb.toString();
-			// Scan chunks looking for palette, transparency and image data
-			byte[] pal = null;
-			byte[] trns = null;
-			byte[] data = null;
-			do {
-				int n = this._freadint(f);
-				String type = new String(this._fread(f, 4));
-				if (type.equals("PLTE")) { 
-					// Read palette
-					pal = this._freadb(f, n);
-					this._fread(f, 4);
-				} else if (type.equals("tRNS")) { 
-					// Read transparency info
-					byte[] t = this._freadb(f, n);
-					if (ct == 0) {
-						trns = new byte[] { t[1] };
-					} else if (ct == 2) {
-						trns = new byte[] { t[1], t[3], t[5] };
-					} else {
-						int pos = new String(t).indexOf(0);
-						if (pos != -1) {
+			throw new IOException("Interlacing not supported: " + fileName); 
+		}
+		String parms = _pngparms(ct == 2 || ct == 6 ? 3 : 1, bpc, w);
+		// Scan chunks looking for palette, transparency and image data
+		byte[] pal = null;
+		byte[] trns = null;
+		List<ByteBuffer> idat = new ArrayList<>();
+		int length = 0;
+		while (f.next()) {
+			String type = f.getType();
+			if (type.equals("PLTE")) { 
+				// Read palette
+				ByteBuffer b = f.getData();
+				pal = new byte[b.remaining()];
+				b.get(pal);
+			} else if (type.equals("tRNS")) { 
+				// Read transparency info
+				ByteBuffer t = f.getData();
+				if (ct == 0) {
+					trns = new byte[] { t.get(1) };
+				} else if (ct == 2) {
+					trns = new byte[] { t.get(1), t.get(3), t.get(5) };
+				} else {
+					for (int pos = 0; pos < t.limit(); pos++) {
+						if (t.get(pos) == 0) {
 							trns = new byte[] { (byte) pos };
+							break;
 						}
 					}
-					this._fread(f, 4);
-				} else if (type.equals("IDAT")) { 
-					// Read image data block
-					data = this._freadb(f, n, data);
-					this._fread(f, 4);
-				} else if (type.equals("IEND")) { 
-					break;
-				} else {
-					this._fread(f, n + 4);
 				}
-			} while (f.available() > 0);
-			if (colspace.equals("Indexed") && (pal == null)) { 
-				throw new IOException("Missing palette in " + fileName); 
+			} else if (type.equals("IDAT")) { 
+				// Image data blocks are joined once all are known
+				ByteBuffer b = f.getData();
+				idat.add(b);
+				length += b.remaining();
+			} else if (type.equals("IEND")) { 
+				break;
 			}
-			Map<String, Object> image = new HashMap<>();
-			image.put("w", w);
-			image.put("h", h);
-			image.put("cs", colspace); 
-			image.put("bpc", bpc);
-			image.put("f", "FlateDecode"); 
-			image.put("parms", parms); 
-			image.put("pal", pal); 
-			image.put("trns", trns); 
-			image.put("data", data); 
-			image.put("i", this.images.size() + 1);
-			return image;
+		}
+		if (colspace.equals("Indexed") && (pal == null)) { 
+			throw new IOException("Missing palette in " + fileName); 
+		}
+		byte[] data = null;
+		Map<String, Object> smask = null;
+		if (ct >= 4) {
+			// Split the alpha channel off into a soft mask
+			byte[][] planes = _splitpngalpha(fileName, idat, w, h, (ct == 6) ? 3 : 1, this.compressor);
+			data = planes[0];
+			smask = new HashMap<>();
+			smask.put("w", w);
+			smask.put("h", h);
+			smask.put("cs", "DeviceGray");
+			smask.put("bpc", 8);
+			smask.put("f", "FlateDecode");
+			smask.put("parms", _pngparms(1, 8, w));
+			smask.put("data", planes[1]);
+		} else if (!idat.isEmpty()) {
+			data = new byte[length];
+			int offset = 0;
+			for (ByteBuffer b : idat) {
+				int l = b.remaining();
+				b.get(data, offset, l);
+				offset += l;
+			}
+		}
+		Map<String, Object> image = new HashMap<>();
+		image.put("w", w);
+		image.put("h", h);
+		image.put("cs", colspace); 
+		image.put("bpc", bpc);
+		image.put("f", "FlateDecode"); 
+		image.put("parms", parms); 
+		image.put("pal", pal); 
+		image.put("trns", trns); 
+		image.put("data", data); 
+		image.put("i", this.images.size() + 1);
+		if (smask != null) {
+			image.put("smask", smask);
+			this._usesmask();
+		}
+		return image;
+	}
+
+	private static String _pngparms(int colors, int bpc, int w) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("/DecodeParms <</Predictor 15 /Colors ").append( 
+				colors).append(" /BitsPerComponent ").append(bpc) 
+				.append(" /Columns ").append(w).append(">>"); 
+		return sb.toString();
+	}
+
+	/**
+	 * Inflates the image data of a PNG file with an alpha channel one
+	 * scanline at a time, and deflates the colour and alpha samples into two
+	 * separate streams. Each row keeps its filter type byte: PNG filters work
+	 * on corresponding bytes of neighbouring pixels, so the split rows are
+	 * still correctly filtered and need no unfiltering.
+	 * 
+	 * @return the colour and alpha streams
+	 */
+	private static byte[][] _splitpngalpha(String fileName, List<ByteBuffer> idat, int w, int h, int colors,
+			Compressor compressor) throws IOException {
+		int pixel = colors + 1;
+		byte[] row = new byte[1 + pixel * w];
+		byte[] colorRow = new byte[1 + colors * w];
+		byte[] alphaRow = new byte[1 + w];
+		ByteArrayOutputStream color = new ByteArrayOutputStream();
+		ByteArrayOutputStream alpha = new ByteArrayOutputStream();
+		Iterator<ByteBuffer> chunks = idat.iterator();
+		Inflater inflater = new Inflater();
+		Deflater colorDeflater = compressor.acquire();
+		Deflater alphaDeflater = compressor.acquire();
+		try (DeflaterOutputStream colorOut = new DeflaterOutputStream(color, colorDeflater, compressor.getBufferSize());
+				DeflaterOutputStream alphaOut = new DeflaterOutputStream(alpha, alphaDeflater, compressor.getBufferSize())) {
+			for (int y = 0; y < h; y++) {
+				try {
+					Compressor.inflateFully(inflater, chunks, row, 0, row.length);
+				} catch (EOFException e) {
+					throw new IOException("Truncated image data: " + fileName, e);
+				}
+				colorRow[0] = row[0];
+				alphaRow[0] = row[0];
+				for (int x = 0, p = 1, c = 1; x < w; x++, p += pixel, c += colors) {
+					System.arraycopy(row, p, colorRow, c, colors);
+					alphaRow[1 + x] = row[p + colors];
+				}
+				colorOut.write(colorRow);
+				alphaOut.write(alphaRow);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt image data: " + fileName, e);
+		} finally {
+			inflater.end();
+			compressor.release(colorDeflater);
+			compressor.release(alphaDeflater);
+		}
+		return new byte[][] { color.toByteArray(), alpha.toByteArray() };
+	}
+
+	/**
+	 * Soft masks need PDF 1.4. In streaming mode the header has been written
+	 * already; readers accept soft masks in older files as well.
+	 */
+	private void _usesmask() {
+		if (this.pdfVersion.compareTo("1.4") < 0) {
+			this.pdfVersion = "1.4";
 		}
 	}
 	
-	/** Parse a PNG file with an alpha channel */
+	/** Parse an interlaced PNG file with an alpha channel through ImageIO */
 	protected Map<String, Object> _parsepngWithAlpha(String fileName, byte[] data) throws IOException {
 		BufferedImage img = ImageIO.read(new ByteArrayInputStream(data));
 		int width = img.getWidth();
@@ -872,7 +1452,7 @@ public abstract class FPDF {
 		// Split alpha channel off into a grayscale image
 		for (int i = 0; i < imgPx.length; i++) {
 			int a = (imgPx[i] >> 24) & 0xFF; // AARRGGBB -> XXXXXXAA -> 000000AA;
-			maskPx[i] = a | a << 8 | a << 16; // 000000AA | 0000AA00 | 00AA0000 -> 00AAAAAA
+			maskPx[i] = a;
 			imgPx[i] = imgPx[i] & 0x00FFFFFF; // AARRGGBB -> 00RRGGBB
 		}
 		
@@ -880,21 +1460,24 @@ public abstract class FPDF {
 		BufferedImage out = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 		out.setRGB(0, 0, width, height, imgPx, 0, width);
 		
-		// mask contains the grayscale-converted alpha channel of the original image
+		// mask contains the alpha channel of the original image; the samples are
+		// set directly since setRGB() would apply a gamma conversion
 		BufferedImage mask = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-		mask.setRGB(0, 0, width, height, maskPx, 0, width);
+		mask.getRaster().setPixels(0, 0, width, height, maskPx);
 		
 		// attempt to re-parse the image, but without the alpha channel
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		ImageIO.write(out, "png", baos);
 		Map<String, Object> info = _parsepng(fileName, baos.toByteArray());
 		
-		// attach the alpha mask to the image info for use later on
+		// attach the alpha mask to the image info as a soft mask
 		baos.reset();
 		ImageIO.write(mask, "png", baos);
-		info.put("alphaMask", baos.toByteArray());
+		info.put("smask", _parsepng(fileName, baos.toByteArray()));
+		this._usesmask();
 		return info;
 	}
+
     protected void _putcatalog() {
         this._out("/Type /Catalog"); //$NON-NLS-1$
         this._out("/Pages 1 0 R"); //$NON-NLS-1$
@@ -935,23 +1518,90 @@ public abstract class FPDF {
                     this._out("/Encoding /WinAnsiEncoding"); //$NON-NLS-1$
                 }
                 this._out(">>"); //$NON-NLS-1$
-                this._out("endobj"); //$NON-NLS-1$
+                this._endobj();
+            } else if (type == Font.Type.TTF) {
+                this._puttruetype(font);
             }
-            // FIXME no support for embedded or user fonts!
         }
     }
 
+    /**
+     * Writes an embedded TrueType font: the font dictionary, its widths,
+     * its descriptor and a subset of the font file holding the glyphs of
+     * the characters used in the document, including the digits of the
+     * total number of pages if its alias is set.
+     */
+    protected void _puttruetype(final Font font) {
+        final TrueTypeFont file = font.getFile();
+        if (this.aliasNbPages != null) {
+            // The digits replacing the alias were never shown as text
+            font.addUsed(Integer.toString(this.page));
+        }
+        final BitSet used = font.getUsed();
+        // Subset tag, derived from the characters used
+        final StringBuilder tag = new StringBuilder();
+        int hash = used.hashCode();
+        for (int j = 0; j < 6; j++) {
+            tag.append((char) ('A' + ((hash & 0x7FFFFFFF) % 26)));
+            hash = hash * 31 + j;
+        }
+        final String baseFont = tag + "+" + font.getName(); //$NON-NLS-1$
+        this._newobj();
+        this._out("<</Type /Font"); //$NON-NLS-1$
+        this._out("/BaseFont /" + baseFont); //$NON-NLS-1$
+        this._out("/Subtype /TrueType"); //$NON-NLS-1$
+        this._out("/FirstChar 32 /LastChar 255"); //$NON-NLS-1$
+        this._out("/Widths " + (this.n + 1) + " 0 R"); //$NON-NLS-1$//$NON-NLS-2$
+        this._out("/FontDescriptor " + (this.n + 2) + " 0 R"); //$NON-NLS-1$//$NON-NLS-2$
+        this._out("/Encoding /WinAnsiEncoding"); //$NON-NLS-1$
+        this._out(">>"); //$NON-NLS-1$
+        this._endobj();
+        // Widths
+        this._newobj();
+        final StringBuilder w = new StringBuilder("["); //$NON-NLS-1$
+        for (int c = 32; c <= 255; c++) {
+            w.append(file.getWidth(c)).append(' ');
+        }
+        w.append(']');
+        this._out(w.toString());
+        this._endobj();
+        // Descriptor
+        this._newobj();
+        this._out("<</Type /FontDescriptor /FontName /" + baseFont + " " + file.getDescriptor() //$NON-NLS-1$//$NON-NLS-2$
+                + " /FontFile2 " + (this.n + 1) + " 0 R>>"); //$NON-NLS-1$//$NON-NLS-2$
+        this._endobj();
+        // Font file, always compressed
+        final byte[] subset = file.subset(used);
+        final byte[] data = gzcompress(subset);
+        this._newobj();
+        this._out("<</Filter /FlateDecode /Length " + data.length + " /Length1 " + subset.length + ">>"); //$NON-NLS-1$//$NON-NLS-2$//$NON-NLS-3$
+        this._putstream(data);
+        this._endobj();
+    }
+
     protected void _putheader() {
         this._out("%PDF-" + this.pdfVersion); //$NON-NLS-1$
     }
 
 	protected void _putimages() {
-          String filter = (this.compress) ? "/Filter /FlateDecode " : ""; 
           // Yikes, this.images: Map<String, Map<String, Object>>
           Iterator<Entry<String, Map<String, Object>>> it = this.images.entrySet().iterator();
           while (it.hasNext()) {
             Map.Entry<String, Map<String, Object>> imageEntry = it.next();
             Map<String, Object> image = imageEntry.getValue();
+            this._putimage(image);
+            // Set object back into underlying data structure so any changes are
+            // available elsewhere in future processing logic 
+            imageEntry.setValue(image);
+          }
+	}
+
+	/**
+	 * Writes an image XObject, followed by its soft mask and palette if it
+	 * has them.
+	 */
+	protected void _putimage(Map<String, Object> image) {
+            String filter = (this.compress) ? "/Filter /FlateDecode " : ""; 
             // Have to call _newobj() before other stuff.  this.n gets incremented in here
             this._newobj();
             // Don't miss this, we set the image order in here.  If this doesn't get set 
@@ -962,15 +1612,31 @@ public abstract class FPDF {
             this._out("/Subtype /Image");
             this._out("/Width " + image.get("w"));
             this._out("/Height " + image.get("h"));
-            // 
-            if (images.containsKey("alphaMask")) {
-              this._out("/SMask " + image.get("n") + " 0 R");
+            // Soft masks and palettes follow the image, unless the same one has
+            // been written for another image already
+            int next = this.n + 1;
+            @SuppressWarnings("unchecked")
+            Map<String, Object> smask = (Map<String, Object>) image.get("smask");
+            if (smask != null) {
+              String key = "smask:" + _imagehash(smask);
+              if (this.imageObjects.containsKey(key)) {
+                smask = null;
+              } else {
+                this.imageObjects.put(key, next++);
+              }
+              this._out("/SMask " + this.imageObjects.get(key) + " 0 R");
             }
             // 
+            byte[] pal = null;
             if (image.get("cs") == "Indexed") {
-              // This used to be (this.n + 1) instead of just image.get("n").  Not really sure if this will cause problems
-              // but the old way didn't make much sense to me.  Cross that bridge when we get there I suppose.
-              this._out("/ColorSpace [/Indexed /DeviceRGB " + (((byte[]) image.get("pal")).length / 3 - 1) + " " + image.get("n") + " 0 R]");
+              pal = (byte[]) image.get("pal");
+              String key = "pal:" + _sha256(pal);
+              if (this.imageObjects.containsKey(key)) {
+                pal = null;
+              } else {
+                this.imageObjects.put(key, next++);
+              }
+              this._out("/ColorSpace [/Indexed /DeviceRGB " + (((byte[]) image.get("pal")).length / 3 - 1) + " " + this.imageObjects.get(key) + " 0 R]");
             } else {
               this._out("/ColorSpace /" + image.get("cs"));
               if (image.get("cs") == "DeviceCMYK") {
@@ -996,34 +1662,24 @@ public abstract class FPDF {
               this._out(trns.toString());
             }
             this._out("/Length " + ((byte[]) (image.get("data"))).length + ">>");
-            try {
-              this._putstream(new String((byte[]) image.get("data"), "ISO-8859-1"));  
-            } catch (UnsupportedEncodingException e) {
-              this._putstream(new String((byte[]) image.get("data"))); 
-            }
+            this._putstream((byte[]) image.get("data"));
             image.put("data", null);
-            this._out("endobj");
+            this._endobj();
+            if (smask != null) {
+              this._putimage(smask);
+            }
             // Palette
-            if (image.get("cs") == "Indexed") {
+            if (pal != null) {
               this._newobj();
-              byte[] pal = (byte[]) image.get("pal");
               pal = (this.compress) ? gzcompress(pal) : pal;
               this._out("<<" + filter + "/Length " + pal.length + ">>");
-              try {
-                this._putstream(new String(pal, "ISO-8859-1"));  
-              } catch (UnsupportedEncodingException e) {
-                this._putstream(new String(pal)); 
-              }
-              this._out("endobj");
+              this._putstream(pal);
+              this._endobj();
             }
-            // Set object back into underlying data structure so any changes are
-            // available elsewhere in future processing logic 
-            imageEntry.setValue(image);
-          }
 	}
 
 	private byte[] gzcompress(byte[] pal) {
-		return Compressor.compress(pal);
+		return this.compressor.deflate(pal);
 	}
 
 	protected void _putinfo() {
@@ -1086,32 +1742,46 @@ public abstract class FPDF {
     }
 
     protected static String _stringify(final List<byte[]> buffer) {
-        int length = 0;
-        for (final byte[] b : buffer) {
-            length += b.length;
+        return new String(_join(buffer), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Replaces the alias for total number of pages at the given offsets.
+     *
+     * @param content the page content
+     * @param offsets the offset and length of each occurrence of the alias,
+     *                as recorded by {@link ContentStream#getAliasOffsets()}
+     * @return the content with the number of pages
+     */
+    protected byte[] _replacealias(final byte[] content, final int[] offsets) {
+        final byte[] nb = Integer.toString(this.page).getBytes(StandardCharsets.ISO_8859_1);
+        int size = content.length;
+        for (int i = 1; i < offsets.length; i += 2) {
+            size += nb.length - offsets[i];
         }
-        final byte[] bytes = new byte[length];
-        int offset = 0;
-        for (final byte[] b : buffer) {
-            for (int i = 0; i < b.length; i++) {
-                bytes[offset + i] = b[i];
-            }
-            offset += b.length;
+        final byte[] replaced = new byte[size];
+        int from = 0;
+        int to = 0;
+        for (int i = 0; i < offsets.length; i += 2) {
+            final int offset = offsets[i];
+            System.arraycopy(content, from, replaced, to, offset - from);
+            to += offset - from;
+            System.arraycopy(nb, 0, replaced, to, nb.length);
+            to += nb.length;
+            from = offset + offsets[i + 1];
         }
-        return new String(bytes);
+        System.arraycopy(content, from, replaced, to, content.length - from);
+        return replaced;
     }
 
     protected void _putpages() {
         final int nb = this.page;
-        if (this.aliasNbPages != null) {
-            // Replace number of pages
-            for (int n = 1; n <= nb; n++) {
-                final List<byte[]> bytes = this.pages.get(n);
-                final String s = _stringify(bytes).replace(this.aliasNbPages, String.valueOf(nb));
-                bytes.clear();
-                bytes.add(s.getBytes());
-                this.pages.put(n, bytes);
-            }
+        // Replace number of pages
+        for (final Entry<Integer, int[]> aliases : this.aliasOffsets.entrySet()) {
+            final List<byte[]> bytes = this.pages.get(aliases.getKey());
+            final byte[] content = this._replacealias(_join(bytes), aliases.getValue());
+            bytes.clear();
+            bytes.add(content);
         }
         if (Orientation.PORTRAIT.equals(this.defaultOrientation)) {
             this.wPt = this.fwPt;
@@ -1120,8 +1790,16 @@ public abstract class FPDF {
             this.wPt = this.fhPt;
             this.hPt = this.fwPt;
         }
-        final String filter = (this.compress) ? "/Filter /FlateDecode " //$NON-NLS-1$
-                : ""; //$NON-NLS-1$
+        final Map<Integer, CompletableFuture<byte[]>> compressed = new HashMap<>();
+        if (this.compress && (this.compressionExecutor != null)) {
+            // Compress all pages in parallel, then write them in order
+            for (int n = 1; n <= nb; n++) {
+                final List<byte[]> content = this.pages.get(n);
+                if (content != null) {
+                    compressed.put(n, this._compresspage(content));
+                }
+            }
+        }
         for (int n = 1; n <= nb; n++) {
             // Page
             this._newobj();
@@ -1159,20 +1837,22 @@ public abstract class FPDF {
             }
             this._out("/Contents " //$NON-NLS-1$
                     + (this.n + 1) + " 0 R>>"); //$NON-NLS-1$
-            this._out("endobj"); //$NON-NLS-1$
+            this._endobj();
             // Page content
-            // FIXME implement gz compression
-            String p = (this.compress) ? _stringifyzip(gzcompress(this.pages.get(n))) : _stringify(this.pages.get(n));
-            // final String p = _stringify(this.pages.get(n));
-            this._newobj();
-            this._out("<<" + filter + "/Length " //$NON-NLS-1$//$NON-NLS-2$
-                    + p.length() + ">>"); //$NON-NLS-1$
-            this._putstream(p);
-            this._out("endobj"); //$NON-NLS-1$
+            final List<byte[]> content = this.pages.get(n);
+            if (content == null) {
+                // Written by _endpage() in streaming mode
+                this.n++;
+            } else if (compressed.containsKey(n)) {
+                this._newobj();
+                this._putpagestream(compressed.get(n).join());
+            } else {
+                this._newobj();
+                this._putpagecontent(content);
+            }
         }
         // Pages root
-        this.offsets.put(1, this._length(this.buffer));
-        this._out("1 0 obj"); //$NON-NLS-1$
+        this._newobj(1);
         this._out("<</Type /Pages"); //$NON-NLS-1$
         final StringBuilder kids = new StringBuilder();
         kids.append("/Kids ["); //$NON-NLS-1$
@@ -1186,18 +1866,48 @@ public abstract class FPDF {
         this._out(String.format(Locale.ENGLISH, "/MediaBox [0 0 %.2f %.2f]", //$NON-NLS-1$
                 this.wPt, this.hPt));
         this._out(">>"); //$NON-NLS-1$
-        this._out("endobj"); //$NON-NLS-1$
+        this._endobj();
     }
 
-	private String _stringifyzip(byte[] buffer) {
-		try {
-			return new String(buffer, "ISO-8859-1");
-		} catch (UnsupportedEncodingException e) {
-		}
-		return null;
-	}
+    /**
+     * Writes the dictionary and stream of a page content object
+     */
+    protected void _putpagecontent(final List<byte[]> content) {
+        this._putpagestream(this._pagestream(content));
+    }
+
+    /**
+     * Returns the stream data of a page content object, compressed if
+     * compression is on. Does not touch the document, so it can run on any
+     * thread.
+     */
+    protected byte[] _pagestream(final List<byte[]> content) {
+        return (this.compress) ? gzcompress(content) : _join(content);
+    }
+
+    /**
+     * Writes the dictionary and the given stream data of a page content object
+     */
+    protected void _putpagestream(final byte[] p) {
+        final String filter = (this.compress) ? "/Filter /FlateDecode " //$NON-NLS-1$
+                : ""; //$NON-NLS-1$
+        this._out("<<" + filter + "/Length " //$NON-NLS-1$//$NON-NLS-2$
+                + p.length + ">>"); //$NON-NLS-1$
+        this._putstream(p);
+        this._endobj();
+    }
 
 	private byte[] gzcompress(List<byte[]> buffer) {
+		return gzcompress(_join(buffer));
+	}
+
+	/**
+	 * Joins byte arrays, without copying a single one.
+	 */
+	protected static byte[] _join(final List<byte[]> buffer) {
+		if (buffer.size() == 1) {
+			return buffer.get(0);
+		}
 		int length = 0;
 		for (byte[] b : buffer) {
 			length += b.length;
@@ -1205,13 +1915,10 @@ public abstract class FPDF {
 		byte[] bytes = new byte[length];
 		int offset = 0;
 		for (byte[] b : buffer) {
-			for (int i = 0; i < b.length; i++) {
-				bytes[offset + i] = b[i];
-			}
+			System.arraycopy(b, 0, bytes, offset, b.length);
 			offset += b.length;
 		}
-		byte[] result = gzcompress(bytes);
-		return result;
+		return bytes;
 	}
 
 	protected void _putresourcedict() {
@@ -1234,20 +1941,45 @@ public abstract class FPDF {
 	}
 
     protected void _putresources() {
-        this._putfonts(); // FIXME no support for embedded fonts
+        this._putfonts();
         this._putimages();
+        this._puttemplates();
+        this._putaliasobject();
         // Resource dictionary
-        this.offsets.put(2, this._length(this.buffer));
-        this._out("2 0 obj"); //$NON-NLS-1$
+        this._newobj(2);
         this._out("<<"); //$NON-NLS-1$
         this._putresourcedict();
         this._out(">>"); //$NON-NLS-1$
-        this._out("endobj"); //$NON-NLS-1$
+        this._endobj();
     }
 
     protected void _putstream(final String s) {
+        this._putstream(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Writes binary stream data as it is, without going through a string.
+     */
+    protected void _putstream(final byte[] data) {
+        this._putstream(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer as stream data. The buffer
+     * position is not changed.
+     */
+    protected void _putstream(final ByteBuffer data) {
+        if (this.objectNumber > 0) {
+            // Streams can not be packed, write the object held back
+            final int n = this.objectNumber;
+            this.objectNumber = 0;
+            this.offsets.put(n, this._offset());
+            this._out(n + " 0 obj"); //$NON-NLS-1$
+            this.buffer.write(this.object.toByteArray());
+        }
         this._out("stream"); //$NON-NLS-1$
-        this._out(s);
+        this.buffer.write(data.duplicate());
+        this.buffer.write('\n');
         this._out("endstream"); //$NON-NLS-1$
     }
 
@@ -1268,6 +2000,62 @@ public abstract class FPDF {
             this._out(s.toString());
             s.delete(0, s.length());
         }
+        for (final Entry<Integer, Map<String, Object>> template : this.templates.entrySet()) {
+            this._out("/TPL" + template.getKey() + " " + template.getValue().get("n") + " 0 R"); //$NON-NLS-1$//$NON-NLS-2$//$NON-NLS-3$
+        }
+        if (this.aliasObject > 0) {
+            this._out("/NB " + this.aliasObject + " 0 R"); //$NON-NLS-1$//$NON-NLS-2$
+        }
+    }
+
+    /**
+     * Writes the form XObject showing the total number of pages, if
+     * {@link #_text(float, float, String)} used it. It inherits the font and
+     * text state of the place it is drawn at, and its bounding box covers the
+     * page wherever that is.
+     */
+    protected void _putaliasobject() {
+        if (!this.aliasObjectUsed) {
+            return;
+        }
+        this._newobj();
+        this.aliasObject = this.n;
+        final byte[] p = this._pagestream(Collections.singletonList(new ContentStream(32).write("BT (") //$NON-NLS-1$
+                .writeInt(this.page).write(") Tj ET").toByteArray())); //$NON-NLS-1$
+        final float d = Math.max(this.fwPt, this.fhPt);
+        this._out("<</Type /XObject /Subtype /Form"); //$NON-NLS-1$
+        this._out(new ContentStream(64).write("/BBox [").writeFixed2(-d).write(' ').writeFixed2(-d).write(' ') //$NON-NLS-1$
+                .writeFixed2(d).write(' ').writeFixed2(d).write(']').toString());
+        this._out("/Resources 2 0 R"); //$NON-NLS-1$
+        this._out(((this.compress) ? "/Filter /FlateDecode " : "") + "/Length " + p.length + ">>"); //$NON-NLS-1$//$NON-NLS-2$//$NON-NLS-3$//$NON-NLS-4$
+        this._putstream(p);
+        this._endobj();
+    }
+
+    /**
+     * Writes the templates as form XObjects sharing the resource dictionary
+     * of the pages.
+     */
+    protected void _puttemplates() {
+        final String filter = (this.compress) ? "/Filter /FlateDecode " //$NON-NLS-1$
+                : ""; //$NON-NLS-1$
+        for (final Map<String, Object> template : this.templates.values()) {
+            this._newobj();
+            template.put("n", this.n); //$NON-NLS-1$
+            byte[] data = (byte[]) template.get("data"); //$NON-NLS-1$
+            final int[] aliases = (int[]) template.get("aliases"); //$NON-NLS-1$
+            if (aliases.length > 0) {
+                data = this._replacealias(data, aliases);
+            }
+            final byte[] p = this._pagestream(Collections.singletonList(data));
+            this._out("<</Type /XObject /Subtype /Form"); //$NON-NLS-1$
+            this._out(new ContentStream(64).write("/BBox [0 0 ").writeFixed2((Float) template.get("w")).write(' ') //$NON-NLS-1$//$NON-NLS-2$
+                    .writeFixed2((Float) template.get("h")).write(']').toString()); //$NON-NLS-1$
+            this._out("/Resources 2 0 R"); //$NON-NLS-1$
+            this._out(filter + "/Length " + p.length + ">>"); //$NON-NLS-1$//$NON-NLS-2$
+            this._putstream(p);
+            this._endobj();
+        }
     }
 
     protected String _textstring(final String s) {
@@ -1283,6 +2071,24 @@ public abstract class FPDF {
         return this.autoPageBreak;
     }
 
+    /**
+     * Automatic page break, keeping the abscissa and word spacing.
+     */
+    void _breakpage() throws IOException {
+        final float x = this.x;
+        final float ws = this.ws;
+        if (ws > 0) {
+            this.ws = 0;
+            this._out("0 Tw"); //$NON-NLS-1$
+        }
+        this.addPage(this.currentOrientation);
+        this.x = x;
+        if (ws > 0) {
+            this.ws = ws;
+            this.content.Tw(ws * this.k).newline();
+        }
+    }
+
     /**
      * Creates a new internal link.
      *
@@ -1341,7 +2147,7 @@ public abstract class FPDF {
         this._out("2 J"); //$NON-NLS-1$
         // Set line width
         this.lineWidth = lw;
-        this._out(String.format(Locale.ENGLISH, "%.2f w", lw * this.k)); //$NON-NLS-1$
+        this.content.w(lw * this.k).newline();
         // Set font
         if (family != null) {
             this.setFont(family, style, size);
@@ -1362,7 +2168,7 @@ public abstract class FPDF {
         // Restore line width
         if (this.lineWidth != lw) {
             this.lineWidth = lw;
-            this._out(String.format(Locale.ENGLISH, "%.2f w", lw * this.k)); //$NON-NLS-1$
+            this.content.w(lw * this.k).newline();
         }
         // Restore font
         if (family != null) {
@@ -1389,15 +2195,14 @@ public abstract class FPDF {
     }
 
     /**
-     * Defines an alias for total number of pages
+     * Defines an alias for total number of pages. Occurrences are recorded as
+     * the text is written, so it must be set before the pages using it.
      *
      * @param alias the alias
      */
     public void aliasNbPages(final String alias) {
-        if (alias == null) {
-            this.aliasNbPages = "{nb}"; //$NON-NLS-1$
-        }
-        this.aliasNbPages = alias;
+        this.aliasNbPages = (alias == null) ? "{nb}" : alias; //$NON-NLS-1$
+        this.content.setAlias(this.aliasNbPages);
     }
 
     /**
@@ -1498,22 +2303,11 @@ public abstract class FPDF {
         float x;
         float y;
         if ((this.y + h > this.pageBreakTrigger) && !this.inFooter && this.acceptPageBreak()) {
-            // Automatic page break
-            x = this.x;
-            final float ws = this.ws;
-            if (ws > 0) {
-                this.ws = 0;
-                this._out("0 Tw"); //$NON-NLS-1$
-            }
-            this.addPage(this.currentOrientation);
-            this.x = x;
-            if (ws > 0) {
-                this.ws = ws;
-                this._out(String.format(Locale.ENGLISH, "%.3f Tw", ws * k));
-            }
+            this._breakpage();
         }
         final float w1 = (w == 0) ? this.w - this.rMargin - this.x : w;
-        final StringBuilder s = new StringBuilder();
+        final ContentStream s = this.content;
+        final int start = s.size();
         if ((fill) || ((border != null) && border.getAll())) {
             char op;
             if (fill) {
@@ -1521,29 +2315,22 @@ public abstract class FPDF {
             } else {
                 op = 'S';
             }
-            s.append(String.format(Locale.ENGLISH,
-					"%.2f %.2f %.2f %.2f re %s ",
-                    this.x * k, (this.h - this.y) * k, w1 * k,
-                    -h * k, op));
+            s.re(this.x * k, (this.h - this.y) * k, w1 * k, -h * k).write(' ').write(op).write(' ');
 		}
         if (border != null) {
             x = this.x;
             y = this.y;
             if (border.getLeft()) {
-                s.append(String.format(Locale.ENGLISH, "%.2f %.2f m %.2f %.2f l S ", //$NON-NLS-1$
-                        x * k, (this.h - y) * k, x * k, (this.h - (y + h)) * k));
+                s.moveTo(x * k, (this.h - y) * k).write(' ').lineTo(x * k, (this.h - (y + h)) * k).write(" S ");
             }
             if (border.getTop()) {
-                s.append(String.format(Locale.ENGLISH, "%.2f %.2f m %.2f %.2f l S ", //$NON-NLS-1$
-                        x * k, (this.h - y) * k, (x + w1) * k, (this.h - y) * k));
+                s.moveTo(x * k, (this.h - y) * k).write(' ').lineTo((x + w1) * k, (this.h - y) * k).write(" S ");
             }
             if (border.getRight()) {
-                s.append(String.format(Locale.ENGLISH, "%.2f %.2f m %.2f %.2f l S ", //$NON-NLS-1$
-                        (x + w1) * k, (this.h - y) * k, (x + w1) * k, (this.h - (y + h)) * k));
+                s.moveTo((x + w1) * k, (this.h - y) * k).write(' ').lineTo((x + w1) * k, (this.h - (y + h)) * k).write(" S ");
             }
             if (border.getBottom()) {
-                s.append(String.format(Locale.ENGLISH, "%.2f %.2f m %.2f %.2f l S ", //$NON-NLS-1$
-                        x * k, (this.h - (y + h)) * k, (x + w1) * k, (this.h - (y + h)) * k));
+                s.moveTo(x * k, (this.h - (y + h)) * k).write(' ').lineTo((x + w1) * k, (this.h - (y + h)) * k).write(" S ");
             }
         }
         if (txt != null) {
@@ -1556,26 +2343,22 @@ public abstract class FPDF {
                 dx = this.cMargin;
             }
             if (this.colorFlag) {
-                s.append("q ").append(this.textColor).append(' '); //$NON-NLS-1$
+                s.write("q ").write(this.textColor).write(' '); //$NON-NLS-1$
             }
-            final String txt2 = txt.replace("\\", "\\\\") //$NON-NLS-1$//$NON-NLS-2$
-                    .replace("(", "\\(") //$NON-NLS-1$//$NON-NLS-2$
-                    .replace(")", "\\)"); //$NON-NLS-1$//$NON-NLS-2$
-            s.append(String.format(Locale.ENGLISH, "BT %.2f %.2f Td (%s) Tj ET", //$NON-NLS-1$
-                    (this.x + dx) * k, (this.h - (this.y + .5f * h + .3f * this.fontSize)) * k, txt2));
+            this._text(this.x + dx, this.y + .5f * h + .3f * this.fontSize, txt);
             if (this.underline) {
-                s.append(' ');
-                s.append(this._dounderline(this.x + dx, this.y + .5f * h + .3f * this.fontSize, txt));
+                s.write(' ');
+                this._dounderline(this.x + dx, this.y + .5f * h + .3f * this.fontSize, txt);
             }
             if (this.colorFlag) {
-                s.append(" Q"); //$NON-NLS-1$
+                s.write(" Q"); //$NON-NLS-1$
             }
             if (link > 0) {
                 this.Link(this.x + dx, this.y + .5f * h - .5f * this.fontSize, this.getStringWidth(txt), this.fontSize, link);
             }
         }
-        if (s.length() > 0) {
-            this._out(s.toString());
+        if (s.size() > start) {
+            s.newline();
         }
         this.lastH = h;
         if ((ln != null) && !Position.RIGHTOF.equals(ln)) {
@@ -1622,7 +2405,8 @@ public abstract class FPDF {
                     // Calculate character spacing in points
                     final float char_space = (w1 - this.cMargin * 2 - str_width) / Math.max(txt.length() - 1, 1) * this.k;
                     // Set character spacing
-                    this._out(String.format(Locale.ENGLISH, "BT %.2f Tc ET", char_space));
+                    this.content.write("BT ").writeFixed2(char_space).write(" Tc ET").newline();
+                    this.charSpacing = char_space;
                     break;
 
                 // Horizontal scaling
@@ -1630,7 +2414,8 @@ public abstract class FPDF {
                     // Calculate horizontal scaling
                     final float horiz_scale = ratio * 100.0f;
                     // Set horizontal scaling
-                    this._out(String.format(Locale.ENGLISH, "BT %.2f Tz ET", horiz_scale));
+                    this.content.write("BT ").writeFixed2(horiz_scale).write(" Tz ET").newline();
+                    this.horizontalScaling = horiz_scale;
                     break;
 
             }
@@ -1643,6 +2428,8 @@ public abstract class FPDF {
 
         // Reset character spacing/horizontal scaling
         if (fit) {
+            this.charSpacing = 0;
+            this.horizontalScaling = 100;
             this._out("BT " //$NON-NLS-1$
                     + (ScaleMode.CHARSPACE.equals(scale) ? "0 Tc"//$NON-NLS-1$
                     : "100 Tz") //$NON-NLS-1$
@@ -1809,11 +2596,7 @@ public abstract class FPDF {
      * @return the width of that string.
      */
     public float getStringWidth(final String s) {
-        float w = 0f;
-        final float l = s.length();
-        for (int i = 0; i < l; i++) {
-            w += this.currentFont.getCw().get(s.charAt(i));
-        }
+        final float w = this.currentFont.getCw().width(s, 0, s.length());
         return w * this.fontSize / 1000;
     }
 
@@ -1855,53 +2638,57 @@ public abstract class FPDF {
 	public void Image(final String file, final Coordinate coords, final float w, final float h, final ImageType type,
 			final int link) throws IOException {
 		File f = new File(file);
-		Image(file, Files.readAllBytes(f.toPath()), coords, w, h, type, link, false);
+		byte[] data = null;
+		if ((this.images.get(file) == null) && !this.imageAliases.containsKey(file)) {
+			if (this.imageCache != null) {
+				// Files are identified by path and modification time, so they
+				// need not be read if they are cached
+				String key = _imagetype(file, type) + this._imagesettings() + ":file:" + f.getCanonicalPath() + ':'
+						+ f.lastModified() + ':' + f.length();
+				Map<String, Object> info = this.imageCache.get(key);
+				if (info == null) {
+					info = this._parseimage(file, Files.readAllBytes(f.toPath()), type);
+					this.imageCache.put(key, this._copyimage(info));
+				}
+				this._addimage(file, info, key);
+			} else {
+				data = Files.readAllBytes(f.toPath());
+			}
+		}
+		Image(file, data, coords, w, h, type, link, false);
 	}
 	
-	@SuppressWarnings("fallthrough")
 	protected void Image(final String file, byte[] data, Coordinate coords, final float w, final float h, final ImageType type,
 			final int link, boolean isMask) throws IOException {
 		Map<String, Object> info = null;
-		if (this.images.get(file) == null) {
-			// First use of image, get info
-			ImageType type1;
-			if (type == null) {
-				int pos = file.indexOf('.');
-				if (pos == -1) {
-					throw new IOException("Image file has no extension and no type was specified: " 
-							+ file);
-				}
-				type1 = ImageType.valueOf(file.substring(pos + 1).toUpperCase());
+		// A mask is another image than the same file shown as it is
+		final String image = isMask ? file + ":mask" : file;
+		String name = this.imageAliases.containsKey(image) ? this.imageAliases.get(image) : image;
+		if (this.images.get(name) == null) {
+			// First use of image, get info unless the same data was used before
+			String key = _imagetype(file, type) + this._imagesettings() + ":sha256:" + _sha256(data);
+			name = this.imageKeys.get(isMask ? key + ":mask" : key);
+			if (name != null) {
+				this.imageAliases.put(image, name);
 			} else {
-				type1 = type;
-			}
-			
-			switch (type1) {
-				case GIF:
-					// gifs: convert to png first
-					ByteArrayOutputStream baos = new ByteArrayOutputStream();
-					ImageIO.write(ImageIO.read(new ByteArrayInputStream(data)), "png", baos);
-					data = baos.toByteArray();
-					// fallthrough!
-				case PNG:
-					info = this._parsepng(file, data);
-					break;
-				case JPEG:
-					info = this._parsejpg(file, data);
-					break;
-				default:
-					throw new IOException("Image type not supported.");
+				info = (this.imageCache != null) ? this.imageCache.get(key) : null;
+				if (info == null) {
+					info = this._parseimage(file, data, type);
+					if (this.imageCache != null) {
+						this.imageCache.put(key, this._copyimage(info));
+					}
+				}
+				if (isMask) {
+					// masks are grayscale, regardless of what it claims; the
+					// colour space is part of the content hash of the copy
+					info = this._copyimage(info);
+					info.put("cs", "DeviceGray");
+					key += ":mask";
+				}
+				name = this._addimage(image, info, key);
 			}
-			// FIXME no support for other formats
-			this.images.put(file, info);
-		} else {
-			info = this.images.get(file);
-		}
-		
-		// masks are grayscale, regardless of what it claims
-		if (isMask) {
-			info.put("cs", "DeviceGray");
 		}
+		info = this.images.get(name);
 		
 		// Automatic width and height calculation if needed
 		float w1 = w;
@@ -1926,22 +2713,291 @@ public abstract class FPDF {
 			);
 		}
 		
-		this._out(String.format(Locale.ENGLISH,
-				"q %.2f 0 0 %.2f %.2f %.2f cm /I%d Do Q",
-                w1 * this.k, h1 * this.k, coords.getX() * this.k,
-                (this.h - (coords.getY() + h1)) * this.k, info.get("i")));
+		this.content.write("q ").writeFixed2(w1 * this.k).write(" 0 0 ").writeFixed2(h1 * this.k).write(' ')
+				.writeFixed2(coords.getX() * this.k).write(' ').writeFixed2((this.h - (coords.getY() + h1)) * this.k)
+				.write(" cm /I").writeInt((Integer) info.get("i")).write(" Do Q").newline();
 		if (link > 0) {
 			this.Link(coords.getX(), coords.getY(), w1, h1, link);
 		}
-                
-                // if the image has an alpha mask, add it separately
-                // Also note, the alphaMask must be applied AFTER the call to _out()
-                // otherwise you'll get corrupted PDFs and be really confused
-		if (info.containsKey("alphaMask")) {
-			this.Image("alphaMask-" + file, (byte[])info.get("alphaMask"), new Coordinate(0, 0), 0, 0, ImageType.PNG, 0, true);
-		}
 	}
 
+    /**
+     * Starts recording a template. Everything drawn until
+     * {@link #endTemplate()} goes into a form XObject instead of the page,
+     * which is written once and can be placed on any page with
+     * {@link #useTemplate(int, float, float, float)}. The template covers the
+     * current page and uses the same coordinates.
+     * <p>
+     * The position, font, colors and line width of the page are restored by
+     * {@link #endTemplate()}. Links are left out of templates, including the
+     * links of cells and images drawn in them, as a template can not carry
+     * them to the pages it is placed on. Automatic page breaks are off while
+     * recording.
+     *
+     * @return the template id
+     */
+    public int beginTemplate() throws IOException {
+        if (this.state != PDFCreationState.PAGE) {
+            throw new PDFCreationError("Templates can only be recorded on a page"); //$NON-NLS-1$
+        }
+        if (this.templateRecording != null) {
+            throw new PDFCreationError("Templates can not be nested"); //$NON-NLS-1$
+        }
+        this.templateRecording = new TemplateRecording();
+        this.content = new ContentStream();
+        this.content.setAlias(this.aliasNbPages);
+        this.autoPageBreak = false;
+        // The template starts from the default graphics state
+        this.content.w(this.lineWidth * this.k).newline();
+        final String family = this.fontFamily;
+        this.fontFamily = ""; //$NON-NLS-1$
+        if ((family != null) && !family.isEmpty()) {
+            this.setFont(family, this.fontStyle, this.fontSizePt);
+        }
+        if (this.drawColor != "0 G") { //$NON-NLS-1$
+            this._out(this.drawColor);
+        }
+        if (this.fillColor != "0 g") { //$NON-NLS-1$
+            this._out(this.fillColor);
+        }
+        return this.templates.size() + 1;
+    }
+
+    /**
+     * @return whether a template is being recorded.
+     */
+    boolean _isrecordingtemplate() {
+        return this.templateRecording != null;
+    }
+
+    /**
+     * Ends recording a template and restores the state of the page.
+     *
+     * @return the template id
+     */
+    public int endTemplate() {
+        if (this.templateRecording == null) {
+            throw new PDFCreationError("No template is being recorded"); //$NON-NLS-1$
+        }
+        final Map<String, Object> template = new HashMap<>();
+        template.put("w", this.wPt); //$NON-NLS-1$
+        template.put("h", this.hPt); //$NON-NLS-1$
+        template.put("data", this.content.toByteArray()); //$NON-NLS-1$
+        template.put("aliases", this.content.getAliasOffsets()); //$NON-NLS-1$
+        final int id = this.templates.size() + 1;
+        this.templates.put(id, template);
+        this.templateRecording.restore();
+        this.templateRecording = null;
+        return id;
+    }
+
+    /**
+     * Places a template on the page, with its top left corner at the top
+     * left corner of the page.
+     *
+     * @param id the template id
+     */
+    public void useTemplate(final int id) {
+        this.useTemplate(id, 0, 0, 1);
+    }
+
+    /**
+     * Places a template on the page.
+     *
+     * @param id    the template id
+     * @param x     abscissa of the top left corner of the template
+     * @param y     ordinate of the top left corner of the template
+     * @param scale the scale factor
+     */
+    public void useTemplate(final int id, final float x, final float y, final float scale) {
+        final Map<String, Object> template = this.templates.get(id);
+        if (template == null) {
+            throw new PDFCreationError("Unknown template: " + id); //$NON-NLS-1$
+        }
+        final float h = (Float) template.get("h"); //$NON-NLS-1$
+        this.content.write("q ").cm(scale, 0, 0, scale, x * this.k, this.hPt - y * this.k - scale * h) //$NON-NLS-1$
+                .write(" /TPL").writeInt(id).write(" Do Q").newline(); //$NON-NLS-1$//$NON-NLS-2$
+    }
+
+    /**
+     * The page state saved while a template is recorded.
+     */
+    private class TemplateRecording {
+        private final ContentStream content = FPDF.this.content;
+        private final float x = FPDF.this.x;
+        private final float y = FPDF.this.y;
+        private final String fontFamily = FPDF.this.fontFamily;
+        private final Set<FontStyle> fontStyle = FPDF.this.fontStyle;
+        private final boolean underline = FPDF.this.underline;
+        private final Font currentFont = FPDF.this.currentFont;
+        private final float fontSizePt = FPDF.this.fontSizePt;
+        private final float fontSize = FPDF.this.fontSize;
+        private final float lineWidth = FPDF.this.lineWidth;
+        private final String drawColor = FPDF.this.drawColor;
+        private final String fillColor = FPDF.this.fillColor;
+        private final String textColor = FPDF.this.textColor;
+        private final boolean colorFlag = FPDF.this.colorFlag;
+        private final boolean autoPageBreak = FPDF.this.autoPageBreak;
+
+        void restore() {
+            FPDF.this.content = this.content;
+            FPDF.this.x = this.x;
+            FPDF.this.y = this.y;
+            FPDF.this.fontFamily = this.fontFamily;
+            FPDF.this.fontStyle = this.fontStyle;
+            FPDF.this.underline = this.underline;
+            FPDF.this.currentFont = this.currentFont;
+            FPDF.this.fontSizePt = this.fontSizePt;
+            FPDF.this.fontSize = this.fontSize;
+            FPDF.this.lineWidth = this.lineWidth;
+            FPDF.this.drawColor = this.drawColor;
+            FPDF.this.fillColor = this.fillColor;
+            FPDF.this.textColor = this.textColor;
+            FPDF.this.colorFlag = this.colorFlag;
+            FPDF.this.autoPageBreak = this.autoPageBreak;
+        }
+    }
+
+    private static ImageType _imagetype(final String file, final ImageType type) throws IOException {
+        if (type != null) {
+            return type;
+        }
+        final int pos = file.indexOf('.');
+        if (pos == -1) {
+            throw new IOException("Image file has no extension and no type was specified: " //$NON-NLS-1$
+                    + file);
+        }
+        return ImageType.valueOf(file.substring(pos + 1).toUpperCase());
+    }
+
+    /**
+     * Returns the settings of this document that parsed images depend on:
+     * the Deflate level and strategy alpha channels are compressed with, and
+     * whether PNG checksums are verified. They are part of the image keys, so
+     * documents with other settings do not share parsed images.
+     */
+    protected String _imagesettings() {
+        return ":deflate:" + this.compressor.getLevel() + ':' + this.compressor.getStrategy() //$NON-NLS-1$
+                + (this.checkPngCrc ? ":crc" : ""); //$NON-NLS-1$//$NON-NLS-2$
+    }
+
+    /**
+     * Parses an image file.
+     *
+     * @return the image info
+     * @throws IOException if the image can not be read.
+     */
+    @SuppressWarnings("fallthrough")
+    protected Map<String, Object> _parseimage(final String file, byte[] data, final ImageType type) throws IOException {
+        switch (_imagetype(file, type)) {
+            case GIF:
+                // gifs: convert to png first
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                ImageIO.write(ImageIO.read(new ByteArrayInputStream(data)), "png", baos); //$NON-NLS-1$
+                data = baos.toByteArray();
+                // fallthrough!
+            case PNG:
+                return this._parsepng(file, data);
+            case JPEG:
+                return this._parsejpg(file, data);
+            default:
+                // FIXME no support for other formats
+                throw new IOException("Image type not supported."); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Adds a copy of a parsed image to the document, unless an image with the
+     * same content is there already.
+     *
+     * @param file the image name
+     * @param info the parsed image
+     * @param key  the key identifying the image file
+     * @return the name under which the image is found in the document.
+     */
+    protected String _addimage(final String file, final Map<String, Object> info, final String key) {
+        final String payload = "xobject:" + _imagehash(info); //$NON-NLS-1$
+        final String same = this.imageKeys.get(payload);
+        if (same != null) {
+            this.imageAliases.put(file, same);
+            this.imageKeys.put(key, same);
+            return same;
+        }
+        final Map<String, Object> image = this._copyimage(info);
+        image.put("i", this.images.size() + 1); //$NON-NLS-1$
+        if (image.containsKey("smask")) { //$NON-NLS-1$
+            this._usesmask();
+        }
+        this.images.put(file, image);
+        this.imageKeys.put(key, file);
+        this.imageKeys.put(payload, file);
+        return file;
+    }
+
+    /**
+     * Hashes everything written for an image: its dictionary entries, data,
+     * palette and soft mask.
+     */
+    @SuppressWarnings("unchecked")
+    protected static String _imagehash(final Map<String, Object> image) {
+        final MessageDigest digest = _sha256();
+        for (final String key : new String[] {"w", "h", "cs", "bpc", "f", "parms"}) { //$NON-NLS-1$//$NON-NLS-2$//$NON-NLS-3$//$NON-NLS-4$//$NON-NLS-5$//$NON-NLS-6$
+            digest.update(String.valueOf(image.get(key)).getBytes(StandardCharsets.ISO_8859_1));
+            digest.update((byte) 0);
+        }
+        for (final String key : new String[] {"trns", "pal", "data"}) { //$NON-NLS-1$//$NON-NLS-2$//$NON-NLS-3$
+            final byte[] b = (byte[]) image.get(key);
+            digest.update(_hashlength(b));
+            if (b != null) {
+                digest.update(b);
+            }
+        }
+        final Map<String, Object> smask = (Map<String, Object>) image.get("smask"); //$NON-NLS-1$
+        if (smask != null) {
+            digest.update(_imagehash(smask).getBytes(StandardCharsets.ISO_8859_1));
+        }
+        return _hex(digest.digest());
+    }
+
+    private static byte[] _hashlength(final byte[] b) {
+        final int l = (b == null) ? -1 : b.length;
+        return new byte[] {(byte) (l >>> 24), (byte) (l >>> 16), (byte) (l >>> 8), (byte) l};
+    }
+
+    /**
+     * Copies image info, so that writing the image into one document does not
+     * change it for another. The image data itself is shared.
+     */
+    @SuppressWarnings("unchecked")
+    protected Map<String, Object> _copyimage(final Map<String, Object> info) {
+        final Map<String, Object> copy = new HashMap<>(info);
+        final Object smask = copy.get("smask"); //$NON-NLS-1$
+        if (smask != null) {
+            copy.put("smask", new HashMap<>((Map<String, Object>) smask)); //$NON-NLS-1$
+        }
+        return copy;
+    }
+
+    private static MessageDigest _sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256"); //$NON-NLS-1$
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String _sha256(final byte[] data) {
+        return _hex(_sha256().digest(data));
+    }
+
+    private static String _hex(final byte[] hash) {
+        final StringBuilder sb = new StringBuilder();
+        for (final byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
     /**
      * Sets the line style.
      *
@@ -1960,14 +3016,16 @@ public abstract class FPDF {
             this._out(style.getJoin().toString() + " j"); //$NON-NLS-1$
         }
         if (style.getDashes() != null) {
-            final StringBuilder sb = new StringBuilder();
+            this.content.write('[');
+            boolean first = true;
             for (final float dash : style.getDashes()) {
-                if (sb.length() > 0) {
-                    sb.append(' ');
+                if (!first) {
+                    this.content.write(' ');
                 }
-                sb.append(String.format(Locale.ENGLISH, "%.2f", dash));
+                this.content.writeFixed2(dash);
+                first = false;
             }
-            this._out(String.format(Locale.ENGLISH, "[%s] %.2f d", sb.toString(), style.getPhase()));
+            this.content.write("] ").writeFixed2(style.getPhase()).write(" d").newline();
         }
         if (style.getColor() != null) {
             this.setDrawColor(style.getColor());
@@ -1981,14 +3039,18 @@ public abstract class FPDF {
      * @param end   the end of the line
      */
     public void Line(final Coordinate start, final Coordinate end) {
-        this._out(String.format(Locale.ENGLISH, "%.2f %.2f m %.2f %.2f l S", //$NON-NLS-1$
-                start.getX() * this.k, (this.h - start.getY()) * this.k, end.getX() * this.k, (this.h - end.getY()) * this.k));
+        this.content.moveTo(start.getX() * this.k, (this.h - start.getY()) * this.k).write(' ')
+                .lineTo(end.getX() * this.k, (this.h - end.getY()) * this.k).write(" S").newline(); //$NON-NLS-1$
     }
 
     /**
      * Put a link on the page
      */
     public void Link(final float x, final float y, final float w, final float h, final int link) {
+        if (this.templateRecording != null) {
+            // Not on the page being recorded on, nor on the pages using it
+            return;
+        }
         final Map<Integer, Object> map = new HashMap<>();
         map.put(0, x * this.k);
         map.put(1, this.hPt - y * this.k);
@@ -2033,13 +3095,62 @@ public abstract class FPDF {
 	public void MultiCell(final float w, final float h, final String txt, final Borders border, final Alignment align,
 			final boolean fill) throws IOException {
 		float w1 = (w == 0) ? this.w - this.rMargin - this.x : w;
-		Charwidths cw = this.currentFont.getCw();
 		float wmax = (w1 - 2 * this.cMargin) * 1000 / this.fontSize;
-		String s = txt.replace("\r", ""); 
+		String s = _stripcr(txt);
 		int nb = s.length();
 		if ((nb > 0) && (s.charAt(nb - 1) == '\n')) {
 			nb--;
 		}
+		LineBreaker lines = new LineBreaker(this.currentFont.getCw());
+		this._breaklines(lines, s, nb, wmax, align);
+		this._multicell(w1, h, s, lines, border, align, fill);
+	}
+
+	/**
+	 * Breaks the text of a MultiCell into lines, with the optimal fit if it
+	 * is on and the text is justified.
+	 */
+	int _breaklines(final LineBreaker lines, final String s, final int nb, final float wmax, final Alignment align) {
+		if (this.optimalLineBreaks && ((align == null) || Alignment.JUSTIFIED.equals(align))) {
+			return lines.breakLinesOptimal(s, 0, nb, wmax, this.lineBreakScratch);
+		}
+		return lines.breakLines(s, 0, nb, wmax);
+	}
+
+	/**
+	 * Index of the line of a MultiCell before which a page break should be
+	 * made early to keep the widows and orphans settings, or -1. Lines from
+	 * <code>n</code> on are still to be drawn from the current position.
+	 */
+	private int _breakbefore(final int n, final int count, final float h) {
+		if (!this.autoPageBreak || this.inFooter) {
+			return -1;
+		}
+		int fit = 0;
+		for (float y = this.y; (fit < count - n) && (y + h <= this.pageBreakTrigger); y += h) {
+			fit++;
+		}
+		if ((fit == 0) || (fit == count - n)) {
+			return -1;
+		}
+		int m = Math.min(fit, count - n - this.widows);
+		if ((n == 0) && (m < this.orphans)) {
+			// Move the whole paragraph to the next page
+			m = 0;
+		} else if (m <= 0) {
+			return -1;
+		}
+		return (m < fit) ? n + m : -1;
+	}
+
+	/**
+	 * Draws text already broken into lines for a MultiCell of width
+	 * <code>w1</code> in the current font.
+	 */
+	void _multicell(final float w1, final float h, final String s, final LineBreaker lines, final Borders border,
+			final Alignment align, final boolean fill) throws IOException {
+		float wmax = (w1 - 2 * this.cMargin) * 1000 / this.fontSize;
+		int count = lines.getCount();
 		Borders b = null;
 		Borders b2 = null;
 		if (border != null) {
@@ -2051,87 +3162,59 @@ public abstract class FPDF {
 				b2 = new Borders(border.getLeft(), false, border.getRight(), false);
 			}
 		}
-		int sep = -1;
-		int i = 0;
-		int j = 0;
-		int l = 0;
-		int ls = 0;
-		int ns = 0;
-		int nl = 1;
-		while (i < nb) {
-			// Get next character
-			char c = s.charAt(i);
-			if (c == '\n') {
-				// Explicit line break
-				if (this.ws > 0) {
-					this.ws = 0;
-					this._out("0 Tw"); 
+		boolean keep = (this.widows > 1) || (this.orphans > 1);
+		int page = -1;
+		float y = 0;
+		int breakBefore = -1;
+		for (int n = 0; n < count; n++) {
+			if (keep) {
+				if ((this.page != page) || (this.y < y)) {
+					// Start of the MultiCell, or of a new page or column
+					page = this.page;
+					breakBefore = this._breakbefore(n, count, h);
 				}
-				this.Cell(w1, h, s.substring(j, i), b, Position.BELOW, align, fill, 0);
-				i++;
-				sep = -1;
-				j = i;
-				l = 0;
-				ns = 0;
-				nl++;
-				if ((border != null) && (nl == 2)) {
-					b = b2;
+				if (((n == breakBefore) || (this.y + h > this.pageBreakTrigger)) && !this.inFooter) {
+					if (this.acceptPageBreak()) {
+						this._breakpage();
+					}
+					page = this.page;
+					breakBefore = this._breakbefore(n, count, h);
 				}
-				continue;
+				y = this.y;
 			}
-			if (c == ' ') {
-				sep = i;
-				ls = l;
-				ns++;
+			if ((lines.getKind(n) == LineBreaker.SPACE) && ((align == null) || Alignment.JUSTIFIED.equals(align))) {
+				int ns = lines.getSpaces(n);
+				this.ws = (ns > 0) ? (wmax - lines.getWidth(n)) / 1000 * this.fontSize / ns : 0;
+				this.content.Tw(this.ws * this.k).newline();
+			} else if (this.ws > 0) {
+				this.ws = 0;
+				this._out("0 Tw"); 
 			}
-			l += cw.get(c);
-			if (l > wmax) {
-				// Automatic line break
-				if (sep == -1) {
-					if (i == j) {
-						i++;
-					}
-					if (this.ws > 0) {
-						this.ws = 0;
-						this._out("0 Tw"); 
-					}
-					this.Cell(w1, h, s.substring(j, i), b, Position.BELOW, align, fill, 0);
-				} else {
-					if ((align == null) || Alignment.JUSTIFIED.equals(align)) {
-						this.ws = (ns > 1) ? (wmax - ls) / 1000 * this.fontSize / (ns - 1) : 0;
-						this._out(String.format(Locale.ENGLISH, "%.3f Tw", 
-								this.ws * this.k));
-					}
-					this.Cell(w1, h, s.substring(j, sep), b, Position.BELOW, align, fill, 0);
-					i = sep + 1;
-				}
-				sep = -1;
-				j = i;
-				l = 0;
-				ns = 0;
-				nl++;
-				if ((border != null) && (nl == 2)) {
-					b = b2;
-				}
-			} else {
-				i++;
+			if ((n == count - 1) && (border != null) && border.getBottom()) {
+				b = new Borders(b.getLeft(), b.getTop(), b.getRight(), true);
+			}
+			this.Cell(w1, h, s.substring(lines.getStart(n), lines.getEnd(n)), b, Position.BELOW, align, fill, 0);
+			if ((border != null) && (n == 0)) {
+				b = b2;
 			}
 		}
-		// Last chunk
-		if (this.ws > 0) {
-			this.ws = 0;
-			this._out("0 Tw"); 
-		}
-		if ((border != null) && border.getBottom()) {
-			b = new Borders(b.getLeft(), b.getTop(), b.getRight(), true);
-		}
-		this.Cell(w1, h, s.substring(j, i), b, Position.BELOW, align, fill, 0);
 		this.x = this.lMargin;
 	}
 
+	/**
+	 * Removes carriage returns, without copying text that has none.
+	 */
+	static String _stripcr(final String txt) {
+		return (txt.indexOf('\r') < 0) ? txt : txt.replace("\r", ""); 
+	}
+
 	/** Begin document */
 	public void open() {
 		this.state = PDFCreationState.OPENED;
+		if (this.buffer.isStreaming()) {
+			// Goes out together with the first page
+			this._putheader();
+		}
 	}
 
 	/**
@@ -2141,37 +3224,42 @@ public abstract class FPDF {
 	 *             if the default font can not be loaded.
 	 */
 	public String output() throws IOException {
+		this._checkbuffered();
 		// Finish document if necessary
 		if (this.state != PDFCreationState.FINISHED) {
 			this.close();
 		}
-		return _stringify(this.buffer);
+		return new String(this.buffer.toByteArray());
 	}
 
 	/** Output PDF to local file */
 	public void output(final File file) throws IOException {
+		this._checkbuffered();
 		// Finish document if necessary
 		if (this.state != PDFCreationState.FINISHED) {
 			this.close();
 		}
 		OutputStream out = new FileOutputStream(file);
-		for (byte[] bytes : this.buffer) {
-			out.write(bytes);
-		}
+		this.buffer.writeTo(out);
 		out.close();
 	}
 
 	/** Output PDF to stream */
 	public void output(final OutputStream out) throws IOException {
+		this._checkbuffered();
 		// Finish document if necessary
 		if (this.state != PDFCreationState.FINISHED) {
 			this.close();
 		}
-		for (byte[] bytes : this.buffer) {
-			out.write(bytes);
-		}
+		this.buffer.writeTo(out);
 	}
 
+    private void _checkbuffered() {
+        if (this.buffer.isStreaming()) {
+            throw new PDFCreationError("Document is written in streaming mode, use close() to finish it");
+        }
+    }
+
     /**
      * Gets the current page number.
      *
@@ -2195,10 +3283,8 @@ public abstract class FPDF {
 	 */
 	public void Rect(final Coordinate coords, final float w, float h, final DrawMode mode) {
 		if (mode != null) {
-			this._out(String.format(Locale.ENGLISH,
-					"%.2f %.2f %.2f %.2f re %s",
-                    coords.getX() * this.k, (this.h - coords.getY()) * this.k,
-                    w * this.k, -h * this.k, mode.getOp()));
+			this.content.re(coords.getX() * this.k, (this.h - coords.getY()) * this.k,
+                    w * this.k, -h * this.k).write(' ').write(mode.getOp()).newline();
 		}
 	}
 
@@ -2215,7 +3301,7 @@ public abstract class FPDF {
         if (mode != null) {
             this._Point(start);
             this._Curve(point1, point2, end);
-            this._out(String.valueOf(mode.getOp()));
+            this.content.write(mode.getOp()).newline();
         }
     }
 
@@ -2269,8 +3355,7 @@ public abstract class FPDF {
             y0 = (this.h - y0) * this.k;
             if (angle != 0) {
                 final double a = -Math.toRadians(angle);
-                this._out(String.format(Locale.ENGLISH, "q %.2f %.2f %.2f %.2f %.2f %.2f cm", //$NON-NLS-1$
-                        Math.cos(a), -1 * Math.sin(a), Math.sin(a), Math.cos(a), x0, y0));
+                this.content.write("q ").cm(Math.cos(a), -1 * Math.sin(a), Math.sin(a), Math.cos(a), x0, y0).newline(); //$NON-NLS-1$
                 x0 = 0;
                 y0 = 0;
             }
@@ -2294,7 +3379,7 @@ public abstract class FPDF {
                 c0 = c1;
                 d0 = d1;
             }
-            this._out(String.valueOf(mode.getOp()));
+            this.content.write(mode.getOp()).newline();
             if (angle != 0) {
                 this._out("Q"); //$NON-NLS-1$
             }
@@ -2340,7 +3425,7 @@ public abstract class FPDF {
                 this._Line(coords[i]);
             }
             this._Line(coords[0]);
-            this._out(String.valueOf(mode.getOp()));
+            this.content.write(mode.getOp()).newline();
         }
     }
 
@@ -2429,7 +3514,7 @@ public abstract class FPDF {
 			this._Line(new Coordinate(coords.getX(), yc));
 			this._Curve(new Coordinate(xc - r, yc - (r * myArc)), new Coordinate(xc - (r * myArc), yc - r),
 					new Coordinate(xc, yc - r));
-			this._out(String.valueOf(mode.getOp()));
+			this.content.write(mode.getOp()).newline();
 		}
 	}
 
@@ -2439,8 +3524,7 @@ public abstract class FPDF {
      * @param start the start point
      */
     protected void _Point(final Coordinate start) {
-        this._out(String.format(Locale.ENGLISH, "%.2f %.2f m", //$NON-NLS-1$
-                start.getX() * this.k, (this.h - start.getY()) * this.k));
+        this.content.moveTo(start.getX() * this.k, (this.h - start.getY()) * this.k).newline();
     }
 
     /**
@@ -2449,8 +3533,7 @@ public abstract class FPDF {
      * @param end the end point
      */
     protected void _Line(final Coordinate end) {
-        this._out(String.format(Locale.ENGLISH, "%.2f %.2f l", //$NON-NLS-1$
-                end.getX() * this.k, (this.h - end.getY()) * this.k));
+        this.content.lineTo(end.getX() * this.k, (this.h - end.getY()) * this.k).newline();
     }
 
 	/**
@@ -2464,10 +3547,8 @@ public abstract class FPDF {
 	 *            the end point
 	 */
 	protected void _Curve(final Coordinate control1, final Coordinate control2, final Coordinate end) {
-		this._out(String.format(Locale.ENGLISH,
-				"%.2f %.2f %.2f %.2f %.2f %.2f c", 
-				control1.getX() * this.k, (this.h - control1.getY()) * this.k, control2.getX() * this.k,
-				(this.h - control2.getY()) * this.k, end.getX() * this.k, (this.h - end.getY()) * this.k));
+		this.content.curveTo(control1.getX() * this.k, (this.h - control1.getY()) * this.k, control2.getX() * this.k,
+				(this.h - control2.getY()) * this.k, end.getX() * this.k, (this.h - end.getY()) * this.k).newline();
 	}
 
     /**
@@ -2498,6 +3579,140 @@ public abstract class FPDF {
 		this.compress = compress;
 	}
 
+	/**
+	 * Sets the Deflate level and strategy used for page content, images,
+	 * fonts and object streams, for instance
+	 * <code>new Compressor(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY, 8192)</code>
+	 * for quick previews or <code>Deflater.BEST_COMPRESSION</code> for
+	 * archiving. A compressor can be shared by many documents; its Deflaters
+	 * are reused.
+	 * 
+	 * @param compressor
+	 *            the compressor, or <code>null</code> for the default level
+	 */
+	public void setCompressor(final Compressor compressor) {
+		this.compressor = (compressor == null) ? Compressor.DEFAULT : compressor;
+	}
+
+	/**
+	 * Breaks justified MultiCells with the optimal fit, which spreads the
+	 * spacing evenly over each paragraph instead of filling one line at a
+	 * time. It also applies to justified table cells. Off by default.
+	 * 
+	 * @param optimal
+	 *            whether to use the optimal fit
+	 */
+	public void setOptimalLineBreaks(final boolean optimal) {
+		this.optimalLineBreaks = optimal;
+	}
+
+	/**
+	 * Sets the least number of lines of a MultiCell left at the top of a page
+	 * after an automatic page break. Lines are moved to the new page to make
+	 * up the number. The default of 1 leaves page breaks where they fall.
+	 * 
+	 * @param widows
+	 *            the number of lines
+	 */
+	public void setWidows(final int widows) {
+		this.widows = widows;
+	}
+
+	/**
+	 * Sets the least number of lines of a MultiCell left at the bottom of a
+	 * page before an automatic page break. If fewer lines fit, the whole
+	 * MultiCell starts on the next page. The default of 1 leaves page breaks
+	 * where they fall.
+	 * 
+	 * @param orphans
+	 *            the number of lines
+	 */
+	public void setOrphans(final int orphans) {
+		this.orphans = orphans;
+	}
+
+	/**
+	 * Writes a PDF 1.5 file in which all objects but streams are packed into
+	 * compressed object streams, with a compressed cross-reference stream
+	 * instead of the cross-reference table. Files with many pages, links or
+	 * fonts get much smaller. Must be set before the first page in
+	 * streaming mode. Off by default.
+	 */
+	public void setObjectStreams(final boolean objectStreams) {
+		this.objectStreams = objectStreams;
+		if (objectStreams && (this.pdfVersion.compareTo("1.5") < 0)) {
+			this.pdfVersion = "1.5";
+		}
+	}
+
+	/**
+	 * Shares parsed images with other documents through the given cache.
+	 * Images found in the cache are not read or parsed again.
+	 * 
+	 * @param cache
+	 *            the cache, or <code>null</code> to parse every image
+	 */
+	public void setImageCache(final ImageCache cache) {
+		this.imageCache = cache;
+	}
+
+	/**
+	 * Verify the checksum of every chunk of the PNG images added from now on.
+	 * Off by default.
+	 */
+	public void setPngCrcCheck(final boolean check) {
+		this.checkPngCrc = check;
+	}
+
+	/**
+	 * Compresses page content on the given executor, for instance
+	 * <code>ForkJoinPool.commonPool()</code>, instead of the calling thread.
+	 * Pages are compressed in parallel when the document is closed, or as
+	 * they are finished in streaming mode; they are still written in page
+	 * order, so the output is the same as without an executor. Only has an
+	 * effect if compression is on.
+	 * 
+	 * @param executor
+	 *            the executor, or <code>null</code> to compress on the
+	 *            calling thread
+	 */
+	public void setCompressionExecutor(final Executor executor) {
+		this.compressionExecutor = executor;
+	}
+
+	/**
+	 * Switches to streaming mode: the content of each page is written to the
+	 * given stream as soon as the page is finished, and only the page tree,
+	 * resources and cross-reference table are written by {@link #close()}.
+	 * The stream is flushed but not closed. The output methods can not be
+	 * used on a streamed document.
+	 * <p>
+	 * The total number of pages is not known before the document is closed,
+	 * so text showing its alias draws the alias with a form XObject that is
+	 * written at close; text following the alias on the same line is placed
+	 * as if the alias itself were shown.
+	 * 
+	 * @param out
+	 *            the stream receiving the document
+	 */
+	public void setStreamingOutput(final OutputStream out) {
+		if (this.state != PDFCreationState.NONE) {
+			throw new PDFCreationError("Streaming output must be set before the document is opened");
+		}
+		this.buffer = new OutputBuffer(out);
+	}
+
+	/**
+	 * Switches to streaming mode, writing to a channel.
+	 * 
+	 * @param channel
+	 *            the channel receiving the document
+	 * @see #setStreamingOutput(OutputStream)
+	 */
+	public void setStreamingOutput(final WritableByteChannel channel) {
+		this.setStreamingOutput(Channels.newOutputStream(channel));
+	}
+
     /**
      * Creator of document
      */
@@ -2529,6 +3744,20 @@ public abstract class FPDF {
         }
     }
 
+	/**
+	 * Color operator for a color, grayscale if possible.
+	 */
+	private String _colorop(final Color color, final String gray, final String rgb) {
+		final ContentStream s = new ContentStream(32);
+		if (color.isGrayscale()) {
+			s.writeFixed3(color.getV() / 255f).write(gray);
+		} else {
+			s.writeFixed3(color.getR() / 255f).write(' ').writeFixed3(color.getG() / 255f).write(' ')
+					.writeFixed3(color.getB() / 255f).write(rgb);
+		}
+		return s.toString();
+	}
+
 	/**
 	 * Set color for all stroking operations.
 	 * 
@@ -2536,14 +3765,7 @@ public abstract class FPDF {
 	 *            a Color value.
 	 */
 	public void setDrawColor(final Color color) {
-		if (color.isGrayscale()) {
-			this.drawColor = String.format(Locale.ENGLISH, "%.3f G", color.getV() / 255f);
-		} else {
-			this.drawColor = String.format(Locale.ENGLISH,
-					"%.3f %.3f %.3f RG",
-                    color.getR() / 255f, color.getG() / 255f,
-                    color.getB() / 255f);
-		}
+		this.drawColor = this._colorop(color, " G", " RG");
 		if (this.page > 0) {
 			this._out(this.drawColor);
 		}
@@ -2567,14 +3789,7 @@ public abstract class FPDF {
 	 *            a Color value
 	 */
 	public void setFillColor(final Color color) {
-		if (color.isGrayscale()) {
-			this.fillColor = String.format(Locale.ENGLISH, "%.3f g", color.getV() / 255f);
-		} else {
-			this.fillColor = String.format(Locale.ENGLISH,
-					"%.3f %.3f %.3f rg",
-                    color.getR() / 255f, color.getG() / 255f,
-                    color.getB() / 255f);
-		}
+		this.fillColor = this._colorop(color, " g", " rg");
 		this.colorFlag = (this.fillColor != this.textColor);
 		if (this.page > 0) {
 			this._out(this.fillColor);
@@ -2606,7 +3821,7 @@ public abstract class FPDF {
         } else {
             family = family.toLowerCase();
         }
-        if ("arial".equals(family)) { //$NON-NLS-1$
+        if ("arial".equals(family) && !this._hasfamily(family)) { //$NON-NLS-1$
             family = "helvetica"; //$NON-NLS-1$
         } else if ("symbol".equals(family) //$NON-NLS-1$
                 || "zapfdingbats".equals(family)) { //$NON-NLS-1$
@@ -2650,11 +3865,54 @@ public abstract class FPDF {
 		this.fontSize = size / this.k;
 		this.currentFont = this.fonts.get(fontkey);
 		if (this.page > 0) {
-			this._out(String.format(Locale.ENGLISH, "BT /F%d %.2f Tf ET", 
-					this.currentFont.getI(), Float.valueOf(this.fontSizePt)));
+			this.content.write("BT /F").writeInt(this.currentFont.getI()).write(' ') 
+					.writeFixed2(this.fontSizePt).write(" Tf ET").newline();
 		}
 	}
 
+    /**
+     * Embeds a TrueType font, which can then be selected with
+     * {@link #setFont(String, Set, float)}. Only the glyphs of the characters
+     * used in the document are embedded. Text is encoded as WinAnsi
+     * (Windows-1252), like with the core fonts: characters such as the euro
+     * sign, dashes and curly quotes are printed, characters outside that
+     * encoding are printed as <code>?</code>. The font file is parsed once
+     * and shared with other documents.
+     *
+     * @param family the font family
+     * @param style  the font style: bold, italic or both
+     * @param file   the TrueType font file
+     * @throws IOException if the file can not be read, is not a TrueType font
+     *                     or does not allow embedding.
+     */
+    public void addFont(final String family, final Set<FontStyle> style, final File file) throws IOException {
+        final StringBuilder fontkey = new StringBuilder(family.toLowerCase());
+        if ((style != null) && style.contains(FontStyle.BOLD)) {
+            fontkey.append(FontStyle.BOLD.getOp());
+        }
+        if ((style != null) && style.contains(FontStyle.ITALIC)) {
+            fontkey.append(FontStyle.ITALIC.getOp());
+        }
+        if (this.fonts.containsKey(fontkey.toString())) {
+            return;
+        }
+        final TrueTypeFont ttf = TrueTypeFont.load(file);
+        this.fonts.put(fontkey.toString(), new Font(this.fonts.size() + 1, ttf));
+    }
+
+    /**
+     * @return whether a font of the given family was added with
+     *         {@link #addFont(String, Set, File)}.
+     */
+    protected boolean _hasfamily(final String family) {
+        for (final String style : new String[] {"", "B", "I", "BI"}) { //$NON-NLS-1$//$NON-NLS-2$//$NON-NLS-3$//$NON-NLS-4$
+            if (this.fonts.containsKey(family + style)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Set font style
      */
@@ -2672,8 +3930,8 @@ public abstract class FPDF {
         this.fontSizePt = size;
         this.fontSize = size / this.k;
         if (this.page > 0) {
-            this._out(String.format(Locale.ENGLISH, "BT /F%d %.2f Tf ET", //$NON-NLS-1$
-                    this.currentFont.getI(), this.fontSizePt));
+            this.content.write("BT /F").writeInt(this.currentFont.getI()).write(' ') //$NON-NLS-1$
+                    .writeFixed2(this.fontSizePt).write(" Tf ET").newline();
         }
     }
 
@@ -2700,7 +3958,7 @@ public abstract class FPDF {
     public void setLineWidth(final float width) {
         this.lineWidth = width;
         if (this.page > 0) {
-            this._out(String.format(Locale.ENGLISH, "%.2f w", width * this.k)); //$NON-NLS-1$
+            this.content.w(width * this.k).newline();
         }
     }
 
@@ -2751,14 +4009,7 @@ public abstract class FPDF {
 
 	/** Set color for text */
 	public void setTextColor(final Color color) {
-		if (color.isGrayscale()) {
-			this.textColor = String.format(Locale.ENGLISH, "%.3f g", color.getV() / 255f);
-		} else {
-			this.textColor = String.format(Locale.ENGLISH,
-					"%.3f %.3f %.3f rg",
-                    color.getR() / 255f, color.getG() / 255f,
-                    color.getB() / 255f);
-		}
+		this.textColor = this._colorop(color, " g", " rg");
 		this.colorFlag = (this.fillColor != this.textColor);
 	}
 
@@ -2824,23 +4075,24 @@ public abstract class FPDF {
 
 	/** Output a string */
 	public void Text(final float x, final float y, final String txt) {
-		StringBuilder s = new StringBuilder();
+		ContentStream s = this.content;
 		
 		if (this.colorFlag) {
-			s.append("q ").append(this.textColor).append(' '); 
+			s.write("q ").write(this.textColor).write(' '); 
 		}
 		
-		s.append(String.format("BT %.2f %.2f Td (%s) Tj ET", x * this.k, (this.h - y) * this.k, this._escape(txt)));
+		this._text(x, y, txt);
 		
 		if (this.underline && (txt != null)) {
-			s.append(' ').append(this._dounderline(x, y, txt));
+			s.write(' ');
+			this._dounderline(x, y, txt);
 		}
 		
 		if (this.colorFlag) {
-			s.append(" Q");
+			s.write(" Q");
 		}
 		
-		this._out(s.toString());
+		s.newline();
 	}
 
     /**
@@ -2849,75 +4101,29 @@ public abstract class FPDF {
      * @throws IOException if the default font can not be loaded.
      */
     public void write(final float h, final String txt, final int link) throws IOException {
-        final Charwidths cw = this.currentFont.getCw(); // $NON-NLS-1$
         float w = this.w - this.rMargin - this.x;
-        float wmax = (w - 2 * this.cMargin) * 1000 / this.fontSize;
-        final String s = txt.replace("\r", ""); //$NON-NLS-1$//$NON-NLS-2$
-        final int nb = s.length();
-        int sep = -1;
-        int i = 0;
-        int j = 0;
-        int l = 0;
-        int nl = 1;
-        while (i < nb) {
-            // Get next character
-            final char c = s.charAt(i);
-            if (c == '\n') {
-                // Explicit line break
-                this.Cell(w, h, s.substring(j, i), null, Position.BELOW, null, false, link);
-                i++;
-                sep = -1;
-                j = i;
-                l = 0;
-                if (nl == 1) {
-                    this.x = this.lMargin;
-                    w = this.w - this.rMargin - this.x;
-                    wmax = (w - 2 * this.cMargin) * 1000 / this.fontSize;
-                }
-                nl++;
-                continue;
-            }
-            if (c == ' ') {
-                sep = i;
-            }
-            l += cw.get(c);
-            if (l > wmax) {
-                // Automatic line break
-                if (sep == -1) {
-                    if (this.x > this.lMargin) {
-                        // Move to next line
-                        this.x = this.lMargin;
-                        this.y += h;
-                        w = this.w - this.rMargin - this.x;
-                        wmax = (w - 2 * this.cMargin) * 1000 / this.fontSize;
-                        i++;
-                        nl++;
-                        continue;
-                    }
-                    if (i == j) {
-                        i++;
-                    }
-                    this.Cell(w, h, s.substring(j, i), null, Position.BELOW, null, false, link);
-                } else {
-                    this.Cell(w, h, s.substring(j, sep), null, Position.BELOW, null, false, link);
-                    i = sep + 1;
-                }
-                sep = -1;
-                j = i;
-                l = 0;
-                if (nl == 1) {
-                    this.x = this.lMargin;
-                    w = this.w - this.rMargin - this.x;
-                    wmax = (w - 2 * this.cMargin) * 1000 / this.fontSize;
-                }
-                nl++;
+        final float wmax = (this.w - this.rMargin - this.lMargin - 2 * this.cMargin) * 1000 / this.fontSize;
+        final String s = _stripcr(txt);
+        final LineBreaker lines = new LineBreaker(this.currentFont.getCw());
+        final int count = lines.breakLines(s, 0, s.length(), (w - 2 * this.cMargin) * 1000 / this.fontSize, wmax,
+                this.x > this.lMargin);
+        for (int n = 0; n < count - 1; n++) {
+            if (lines.getKind(n) == LineBreaker.SKIP) {
+                // Move to next line
+                this.y += h;
             } else {
-                i++;
+                this.Cell(w, h, s.substring(lines.getStart(n), lines.getEnd(n)), null, Position.BELOW, null, false, link);
+            }
+            if (n == 0) {
+                this.x = this.lMargin;
+                w = this.w - this.rMargin - this.x;
             }
         }
         // Last chunk
-        if (i != j) {
-            this.Cell(l / 1000 * this.fontSize, h, s.substring(j), null, null, null, false, link);
+        final int last = count - 1;
+        if (lines.getStart(last) != lines.getEnd(last)) {
+            this.Cell(lines.getWidth(last) / 1000f * this.fontSize, h, s.substring(lines.getStart(last)), null, null, null,
+                    false, link);
         }
     }
 }
@@ -1,5 +1,7 @@
 package net.sourceforge.javafpdf;
 
+import java.util.BitSet;
+
 /**
  * Font properties.
  *
@@ -61,6 +63,16 @@ class Font {
      */
     private final Charwidths cw;
 
+    /**
+     * Font file of a TrueType font.
+     */
+    private final TrueTypeFont file;
+
+    /**
+     * Characters used in the document, for subsetting a TrueType font.
+     */
+    private final BitSet used;
+
     /**
      * Constructor.
      *
@@ -79,6 +91,26 @@ class Font {
         this.up = up;
         this.ut = ut;
         this.cw = cw;
+        this.file = null;
+        this.used = null;
+    }
+
+    /**
+     * Constructor. Creates an embedded TrueType font.
+     *
+     * @param i    the index of the font
+     * @param file the font file
+     */
+    public Font(final int i, final TrueTypeFont file) {
+        this.i = i;
+        this.n = 0;
+        this.type = Font.Type.TTF;
+        this.name = file.getPostScriptName();
+        this.up = file.getUnderlinePosition();
+        this.ut = file.getUnderlineThickness();
+        this.cw = file.getCharwidths();
+        this.file = file;
+        this.used = new BitSet(256);
     }
 
     /**
@@ -152,4 +184,34 @@ class Font {
     public Charwidths getCw() {
         return this.cw;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return the font file of a TrueType font, <code>null</code> for a core
+     *         font.
+     */
+    public TrueTypeFont getFile() {
+        return this.file;
+    }
+
+    /**
+     * Records the characters of a text shown with this font, so that only
+     * their glyphs are embedded. Does nothing for core fonts.
+     *
+     * @param txt the text
+     */
+    public void addUsed(final String txt) {
+        if ((this.used == null) || (txt == null)) {
+            return;
+        }
+        for (int i = 0; i < txt.length(); i++) {
+            this.used.set(WinAnsi.encode(txt.charAt(i)));
+        }
+    }
+
+    /**
+     * @return the characters used with a TrueType font.
+     */
+    public BitSet getUsed() {
+        return this.used;
+    }
+}
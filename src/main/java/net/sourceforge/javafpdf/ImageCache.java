@@ -0,0 +1,35 @@
+package net.sourceforge.javafpdf;
+
+import java.util.Map;
+
+/**
+ * Cache of parsed images, shared between documents. An entry is the image
+ * info built by {@link FPDF#_parsepng(String, byte[])} or
+ * {@link FPDF#_parsejpg(String, byte[])}, holding the encoded image data
+ * ready to be written as an XObject. Documents copy the entries they use and
+ * never modify them.
+ * <p>
+ * Keys are built by {@link FPDF}: files are identified by path, modification
+ * time and size, image data by a hash of its content. Keys also hold the
+ * document settings the parsed image depends on, the Deflate level and
+ * strategy and whether PNG checksums are verified.
+ * Implementations must be thread-safe.
+ *
+ * @see LruImageCache
+ * @since 1.5.3
+ */
+public interface ImageCache {
+    /**
+     * @param key the image key
+     * @return the cached image info, or <code>null</code> if there is none.
+     */
+    Map<String, Object> get(String key);
+
+    /**
+     * Adds an image to the cache.
+     *
+     * @param key  the image key
+     * @param info the parsed image info
+     */
+    void put(String key, Map<String, Object> info);
+}
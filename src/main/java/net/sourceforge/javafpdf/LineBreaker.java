@@ -0,0 +1,419 @@
+package net.sourceforge.javafpdf;
+
+import java.util.Arrays;
+
+/**
+ * Greedy line breaking, shared by <code>MultiCell</code>, <code>write</code>
+ * and the table row height. Lines are broken at the last space that fits,
+ * or inside a word that does not fit on a line by itself, and at every
+ * newline. The text is not copied: each line is recorded as a range of the
+ * text in an <code>int</code> array, together with its width and number of
+ * spaces, so it can be measured once and then drawn.
+ *
+ * @since 1.5.3
+ */
+final class LineBreaker {
+	/**
+	 * Line ended by a newline character.
+	 */
+	static final int NEWLINE = 0;
+
+	/**
+	 * Line broken at a space.
+	 */
+	static final int SPACE = 1;
+
+	/**
+	 * Line broken inside a word.
+	 */
+	static final int FORCED = 2;
+
+	/**
+	 * Last line of the text.
+	 */
+	static final int END = 3;
+
+	/**
+	 * Empty first line: the text starts on the next line because its first
+	 * word does not fit in the rest of the current one.
+	 */
+	static final int SKIP = 4;
+
+	private static final int START = 0;
+
+	private static final int STOP = 1;
+
+	private static final int WIDTH = 2;
+
+	private static final int SPACES = 3;
+
+	private static final int KIND = 4;
+
+	private static final int STRIDE = 5;
+
+	private static final double LINE_PENALTY = 10;
+
+	/**
+	 * Stretch ratio above which lines are only tried when the paragraph can
+	 * not be broken otherwise.
+	 */
+	private static final float TOLERANCE = 3;
+
+	private final Charwidths cw;
+
+	private int[] lines = new int[8 * STRIDE];
+
+	private int count;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param cw
+	 *            the widths of the font the text is set in
+	 */
+	LineBreaker(final Charwidths cw) {
+		this.cw = cw;
+	}
+
+	/**
+	 * Breaks text into lines of the same maximum width.
+	 *
+	 * @param s
+	 *            the text, without carriage returns
+	 * @param from
+	 *            index of the first character
+	 * @param to
+	 *            index after the last character
+	 * @param wmax
+	 *            the maximum width of a line, in thousandths of the font size
+	 * @return the number of lines.
+	 */
+	int breakLines(final CharSequence s, final int from, final int to, final float wmax) {
+		return this.breakLines(s, from, to, wmax, wmax, false);
+	}
+
+	/**
+	 * Breaks text into lines, the first of which may be shorter.
+	 *
+	 * @param s
+	 *            the text, without carriage returns
+	 * @param from
+	 *            index of the first character
+	 * @param to
+	 *            index after the last character
+	 * @param first
+	 *            the maximum width of the first line, in thousandths of the
+	 *            font size
+	 * @param wmax
+	 *            the maximum width of the other lines
+	 * @param skip
+	 *            whether a first word too long for the first line moves to the
+	 *            next one, leaving a {@link #SKIP} line, instead of being
+	 *            broken
+	 * @return the number of lines.
+	 */
+	int breakLines(final CharSequence s, final int from, final int to, final float first, final float wmax,
+			final boolean skip) {
+		this.count = 0;
+		this.greedy(s, from, to, first, wmax, skip);
+		return this.count;
+	}
+
+	private void greedy(final CharSequence s, final int from, final int to, final float first, final float wmax,
+			final boolean skip) {
+		final int[] widths = this.cw.getWidths();
+		float max = first;
+		boolean firstLine = true;
+		int sep = -1;
+		int i = from;
+		int j = from;
+		int l = 0;
+		int ls = 0;
+		int ns = 0;
+		while (i < to) {
+			final char c = s.charAt(i);
+			if (c == '\n') {
+				this.add(j, i, l, ns, NEWLINE);
+				i++;
+				sep = -1;
+				j = i;
+				l = 0;
+				ns = 0;
+				max = wmax;
+				firstLine = false;
+				continue;
+			}
+			if (c == ' ') {
+				sep = i;
+				ls = l;
+				ns++;
+			}
+			final int cl = (c < widths.length) ? widths[c] : this.cw.get(c);
+			l += cl;
+			if (l > max) {
+				if (sep == -1) {
+					if (skip && firstLine) {
+						// Start over on the next line, keeping what was measured
+						this.add(j, j, 0, 0, SKIP);
+						max = wmax;
+						firstLine = false;
+						i++;
+						continue;
+					}
+					if (i == j) {
+						i++;
+						this.add(j, i, l, 0, FORCED);
+					} else {
+						this.add(j, i, l - cl, 0, FORCED);
+					}
+				} else {
+					this.add(j, sep, ls, ns - 1, SPACE);
+					i = sep + 1;
+				}
+				sep = -1;
+				j = i;
+				l = 0;
+				ns = 0;
+				max = wmax;
+				firstLine = false;
+			} else {
+				i++;
+			}
+		}
+		this.add(j, i, l, ns, END);
+	}
+
+	/**
+	 * Breaks text into lines of the same maximum width, choosing the breaks
+	 * of each paragraph so that the spacing of justified lines is as even as
+	 * possible over the whole paragraph (the optimal fit of Knuth and
+	 * Plass), rather than filling each line in turn. A line is only
+	 * compared with the breaks that fit on it, so the time is linear in the
+	 * length of the text, and very loose lines are only tried when there is
+	 * no other way to break the paragraph. Paragraphs with a word too long
+	 * for a line are broken greedily.
+	 *
+	 * @param s
+	 *            the text, without carriage returns
+	 * @param from
+	 *            index of the first character
+	 * @param to
+	 *            index after the last character
+	 * @param wmax
+	 *            the maximum width of a line, in thousandths of the font size
+	 * @param scratch
+	 *            working arrays, which can be reused for other texts
+	 * @return the number of lines.
+	 */
+	int breakLinesOptimal(final CharSequence s, final int from, final int to, final float wmax, final Scratch scratch) {
+		this.count = 0;
+		int a = from;
+		while (true) {
+			int e = a;
+			while ((e < to) && (s.charAt(e) != '\n')) {
+				e++;
+			}
+			if (!this.optimal(s, a, e, wmax, TOLERANCE, scratch)
+					&& !this.optimal(s, a, e, wmax, Float.POSITIVE_INFINITY, scratch)) {
+				this.greedy(s, a, e, wmax, wmax, false);
+			}
+			if (e == to) {
+				break;
+			}
+			// The paragraph ends with a newline
+			this.lines[(this.count - 1) * STRIDE + KIND] = NEWLINE;
+			a = e + 1;
+		}
+		return this.count;
+	}
+
+	/**
+	 * Demerits of a line, from how much its spaces have to stretch.
+	 */
+	private static double demerits(final float slack, final int spaces, final int spaceWidth) {
+		if (slack <= 0) {
+			return LINE_PENALTY * LINE_PENALTY;
+		}
+		// Spaces stretch by half their width at a ratio of 1; a single word
+		// counts as one space, so that it is costly but still possible
+		final double r = slack / (Math.max(spaces, 1) * spaceWidth * 0.5);
+		final double badness = 100 * r * r * r;
+		return (LINE_PENALTY + badness) * (LINE_PENALTY + badness);
+	}
+
+	private boolean optimal(final CharSequence s, final int a, final int e, final float wmax, final float tolerance,
+			final Scratch scratch) {
+		final int[] widths = this.cw.getWidths();
+		final int spaceWidth = this.cw.get(' ');
+		// Most a space may stretch, as in demerits()
+		final float stretch = tolerance * spaceWidth * 0.5f;
+		final int len = e - a;
+		// Widths up to each character, and positions of the spaces
+		final int[] prefix = scratch.prefix(len + 1);
+		final int[] spaces = scratch.spaces(len);
+		int m = 0;
+		prefix[0] = 0;
+		for (int i = 0; i < len; i++) {
+			final char c = s.charAt(a + i);
+			if (c == ' ') {
+				spaces[m++] = i;
+			}
+			prefix[i + 1] = prefix[i] + ((c < widths.length) ? widths[c] : this.cw.get(c));
+		}
+		// Node 0 starts the paragraph, node k starts after space k - 1
+		final double[] cost = scratch.cost(m + 1);
+		final int[] previous = scratch.previous(m + 1);
+		Arrays.fill(cost, 0, m + 1, Double.POSITIVE_INFINITY);
+		cost[0] = 0;
+		double best = Double.POSITIVE_INFINITY;
+		int last = -1;
+		for (int u = 0; u <= m; u++) {
+			if (cost[u] == Double.POSITIVE_INFINITY) {
+				continue;
+			}
+			final int p = (u == 0) ? 0 : spaces[u - 1] + 1;
+			for (int k = u; k < m; k++) {
+				final int c = spaces[k];
+				final int width = prefix[c] - prefix[p];
+				if (width > wmax) {
+					break;
+				}
+				if ((c == p) || (wmax - width > Math.max(k - u, 1) * stretch)) {
+					continue;
+				}
+				final double d = cost[u] + demerits(wmax - width, k - u, spaceWidth);
+				if (d < cost[k + 1]) {
+					cost[k + 1] = d;
+					previous[k + 1] = u;
+				}
+			}
+			// The last line is not stretched
+			if ((prefix[len] - prefix[p] <= wmax) && (cost[u] + LINE_PENALTY * LINE_PENALTY < best)) {
+				best = cost[u] + LINE_PENALTY * LINE_PENALTY;
+				last = u;
+			}
+		}
+		if (last < 0) {
+			return false;
+		}
+		// Follow the chosen breaks back to the start, then add the lines
+		int n = 0;
+		for (int u = last; u > 0; u = previous[u]) {
+			n++;
+		}
+		final int first = this.count;
+		this.count += n;
+		for (int u = last; u > 0; u = previous[u]) {
+			final int v = previous[u];
+			final int p = (v == 0) ? 0 : spaces[v - 1] + 1;
+			final int c = spaces[u - 1];
+			this.set(first + --n, a + p, a + c, prefix[c] - prefix[p], u - 1 - v, SPACE);
+		}
+		final int p = (last == 0) ? 0 : spaces[last - 1] + 1;
+		this.add(a + p, e, prefix[len] - prefix[p], m - last, END);
+		return true;
+	}
+
+	private void add(final int start, final int stop, final int width, final int spaces, final int kind) {
+		this.set(this.count++, start, stop, width, spaces, kind);
+	}
+
+	private void set(final int line, final int start, final int stop, final int width, final int spaces,
+			final int kind) {
+		final int n = line * STRIDE;
+		if (n >= this.lines.length) {
+			this.lines = Arrays.copyOf(this.lines, Math.max(n + STRIDE, this.lines.length << 1));
+		}
+		this.lines[n + START] = start;
+		this.lines[n + STOP] = stop;
+		this.lines[n + WIDTH] = width;
+		this.lines[n + SPACES] = spaces;
+		this.lines[n + KIND] = kind;
+	}
+
+	/**
+	 * @return the number of lines found by the last call.
+	 */
+	int getCount() {
+		return this.count;
+	}
+
+	/**
+	 * @return the index of the first character of a line.
+	 */
+	int getStart(final int line) {
+		return this.lines[line * STRIDE + START];
+	}
+
+	/**
+	 * @return the index after the last character of a line, leaving out the
+	 *         space or newline it was broken at.
+	 */
+	int getEnd(final int line) {
+		return this.lines[line * STRIDE + STOP];
+	}
+
+	/**
+	 * @return the width of a line, in thousandths of the font size.
+	 */
+	int getWidth(final int line) {
+		return this.lines[line * STRIDE + WIDTH];
+	}
+
+	/**
+	 * @return the number of spaces in a line.
+	 */
+	int getSpaces(final int line) {
+		return this.lines[line * STRIDE + SPACES];
+	}
+
+	/**
+	 * @return how a line ends: {@link #NEWLINE}, {@link #SPACE},
+	 *         {@link #FORCED}, {@link #END} or {@link #SKIP}.
+	 */
+	int getKind(final int line) {
+		return this.lines[line * STRIDE + KIND];
+	}
+
+	/**
+	 * Working arrays of the optimal fit, kept between calls so that breaking
+	 * many paragraphs does not allocate.
+	 */
+	static final class Scratch {
+		private int[] prefix = new int[256];
+
+		private int[] spaces = new int[64];
+
+		private double[] cost = new double[64];
+
+		private int[] previous = new int[64];
+
+		int[] prefix(final int size) {
+			if (this.prefix.length < size) {
+				this.prefix = new int[Math.max(size, this.prefix.length << 1)];
+			}
+			return this.prefix;
+		}
+
+		int[] spaces(final int size) {
+			if (this.spaces.length < size) {
+				this.spaces = new int[Math.max(size, this.spaces.length << 1)];
+			}
+			return this.spaces;
+		}
+
+		double[] cost(final int size) {
+			if (this.cost.length < size) {
+				this.cost = new double[Math.max(size, this.cost.length << 1)];
+			}
+			return this.cost;
+		}
+
+		int[] previous(final int size) {
+			if (this.previous.length < size) {
+				this.previous = new int[Math.max(size, this.previous.length << 1)];
+			}
+			return this.previous;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package net.sourceforge.javafpdf;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Image cache holding up to a given number of bytes of image data, evicting
+ * the least recently used images first.
+ *
+ * @since 1.5.3
+ */
+public class LruImageCache implements ImageCache {
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, Map<String, Object>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes;
+
+    /**
+     * Constructor.
+     *
+     * @param maxBytes the maximum size of the cached image data
+     */
+    public LruImageCache(final long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public synchronized Map<String, Object> get(final String key) {
+        return this.entries.get(key);
+    }
+
+    @Override
+    public synchronized void put(final String key, final Map<String, Object> info) {
+        final long size = sizeOf(info);
+        if (size > this.maxBytes) {
+            return;
+        }
+        final Map<String, Object> old = this.entries.put(key, info);
+        if (old != null) {
+            this.bytes -= sizeOf(old);
+        }
+        this.bytes += size;
+        final Iterator<Map<String, Object>> it = this.entries.values().iterator();
+        while (this.bytes > this.maxBytes) {
+            this.bytes -= sizeOf(it.next());
+            it.remove();
+        }
+    }
+
+    /**
+     * @return the size of the cached image data in bytes.
+     */
+    public synchronized long size() {
+        return this.bytes;
+    }
+
+    /**
+     * Removes all images.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+        this.bytes = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static long sizeOf(final Map<String, Object> info) {
+        long size = 0;
+        for (final String key : new String[] {"data", "pal"}) {
+            final Object b = info.get(key);
+            if (b instanceof byte[]) {
+                size += ((byte[]) b).length;
+            }
+        }
+        final Object smask = info.get("smask");
+        if (smask instanceof Map) {
+            size += sizeOf((Map<String, Object>) smask);
+        }
+        return size;
+    }
+}
@@ -2,11 +2,29 @@ package net.sourceforge.javafpdf;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
 
 public abstract class PdfMultiCellTable extends FPDF {
 	private List<Integer> widths = new ArrayList<>();
 	private List<Alignment> alignments = new ArrayList<>();
+	private float lineHeight = 5;
+	private float padding = 0;
+
+	private List<String> header;
+	/** Whether rows are being added to a table, below its header. */
+	private boolean inTable;
+	/** The header row as laid out and recorded, with the geometry used. */
+	private RowLayout headerLayout;
+	private float[] headerWidths;
+	private Alignment[] headerAligns;
+	private int headerTemplate;
+	private float headerX;
+	private float headerY;
 
 	public void setWidths(List<Integer> w) {
 		// Set the array of column widths
@@ -18,7 +36,230 @@ public abstract class PdfMultiCellTable extends FPDF {
 		this.alignments = a;
 	}
 
+	/**
+	 * Sets the height of a line of text in the cells. The default is 5.
+	 * 
+	 * @param lineHeight
+	 *            the line height, in user units
+	 * @since 1.5.3
+	 */
+	public void setLineHeight(float lineHeight) {
+		this.lineHeight = lineHeight;
+	}
+
+	/**
+	 * Sets the space between the text and the top and bottom of the cells.
+	 * The default is none.
+	 * 
+	 * @param padding
+	 *            the padding, in user units
+	 * @since 1.5.3
+	 */
+	public void setPadding(float padding) {
+		this.padding = padding;
+	}
+
 	public void row(List<String> data) throws IOException {
+		this.row(this.layout(data));
+	}
+
+	/**
+	 * Breaks the cells of a row into lines in the current font and works out
+	 * the height of the row, without drawing it.
+	 * 
+	 * @param data
+	 *            the text of the cells
+	 * @return the layout, to be drawn with {@link #row(RowLayout)}.
+	 * @since 1.5.3
+	 */
+	public RowLayout layout(List<String> data) {
+		this._checkcolumns(data);
+		if (this.currentFont == null) {
+			throw new PDFCreationError("No default Font. Use SetFont to set a default Font.");
+		}
+		return this._layout(data, new RowLayout(data.size()), this._resolvewidths(this._columnwidths()),
+				this._columnaligns());
+	}
+
+	/**
+	 * Draws a row laid out by {@link #layout(List)}, after a page break if it
+	 * does not fit on the current page. The font, column widths and
+	 * alignments, line height and padding must be the ones it was laid out
+	 * with, and so must the position a column of width 0 starts at.
+	 * 
+	 * @param row
+	 *            the layout of the row
+	 * @throws IOException
+	 *             if the default font can not be loaded.
+	 * @since 1.5.3
+	 */
+	public void row(RowLayout row) throws IOException {
+		if (this.state != PDFCreationState.PAGE) {
+			throw new PDFCreationError("Add rows are only availible in PAGE state");
+		}
+		float[] w = this._resolvewidths(this._columnwidths());
+		Alignment[] a = this._columnaligns();
+		if (!row.isLaidOutWith(this.currentFont, this.fontSize, w, a, this.lineHeight, this.padding)) {
+			throw new PDFCreationError(
+					"The row was laid out in another font or with other widths, alignments, line height or padding");
+		}
+		this._placerow(row, w, a);
+	}
+
+	/**
+	 * Draws many rows, for instance read from a file or a database. The
+	 * column widths and alignments are looked up once, and every row is laid
+	 * out into the same buffer.
+	 * 
+	 * @param rows
+	 *            the text of the cells of each row
+	 * @return the number of rows drawn.
+	 * @throws IOException
+	 *             if the default font can not be loaded.
+	 * @since 1.5.3
+	 */
+	public int rows(Iterator<? extends List<String>> rows) throws IOException {
+		if (this.state != PDFCreationState.PAGE) {
+			throw new PDFCreationError("Add rows are only availible in PAGE state");
+		}
+		if (this.currentFont == null) {
+			throw new PDFCreationError("No default Font. Use SetFont to set a default Font.");
+		}
+		if (this.widths.size() != this.alignments.size()) {
+			throw new IllegalArgumentException("The number of widths (" + this.widths.size()
+					+ ") is not equal to the number of alignments (" + this.alignments.size() + ")");
+		}
+		float[] w = this._columnwidths();
+		Alignment[] a = this._columnaligns();
+		RowLayout row = new RowLayout(w.length);
+		int n = 0;
+		while (rows.hasNext()) {
+			List<String> data = rows.next();
+			this._checkcolumns(data);
+			float[] rw = this._resolvewidths(w);
+			this._placerow(this._layout(data, row, rw, a), rw, a);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Draws many rows.
+	 * 
+	 * @see #rows(Iterator)
+	 * @since 1.5.3
+	 */
+	public int rows(Iterable<? extends List<String>> rows) throws IOException {
+		return this.rows(rows.iterator());
+	}
+
+	/**
+	 * Draws many rows, in the order of the stream.
+	 * 
+	 * @see #rows(Iterator)
+	 * @since 1.5.3
+	 */
+	public int rows(Stream<? extends List<String>> rows) throws IOException {
+		return this.rows(rows.iterator());
+	}
+
+	/**
+	 * Draws many rows.
+	 * 
+	 * @see #rows(Iterator)
+	 * @since 1.5.3
+	 */
+	public int rows(Spliterator<? extends List<String>> rows) throws IOException {
+		return this.rows(Spliterators.iterator(rows));
+	}
+
+	/**
+	 * Sets the header row of the tables. It is drawn above the first row of a
+	 * table, on the same page, and again at the top of the page after each
+	 * page break made by the table. The header is laid out and recorded as a
+	 * template once, so repeating it costs no layout.
+	 * <p>
+	 * Setting a header, like changing the column widths or alignments, ends
+	 * the current table: the next row starts a new table below the header.
+	 * 
+	 * @param header
+	 *            the text of the header cells, or <code>null</code> for no
+	 *            header
+	 * @see #endTable()
+	 * @since 1.5.3
+	 */
+	public void setHeader(List<String> header) {
+		this.header = header;
+		this.headerLayout = null;
+		this.inTable = false;
+	}
+
+	/**
+	 * Ends the current table: the next row starts a new table, below its own
+	 * header.
+	 * 
+	 * @since 1.5.3
+	 */
+	public void endTable() {
+		this.inTable = false;
+	}
+
+	/**
+	 * Draws a row, after a page break if it does not fit on the current page,
+	 * and the header row where the table starts and after page breaks.
+	 */
+	private void _placerow(RowLayout row, float[] w, Alignment[] a) throws IOException {
+		float height = row.getHeight();
+		if (this.header == null) {
+			// Issue a page break first if needed
+			this.CheckPageBreak(height);
+		} else {
+			if (this.headerLayout == null || !this.headerLayout.isLaidOutWith(this.currentFont, this.fontSize, w, a,
+					this.lineHeight, this.padding)) {
+				if (!Arrays.equals(w, this.headerWidths) || !Arrays.equals(a, this.headerAligns)) {
+					// Other columns, another table
+					this.inTable = false;
+				}
+				this._checkcolumns(this.header);
+				this.headerLayout = this._layout(this.header, new RowLayout(w.length), w, a);
+				this.headerWidths = w;
+				this.headerAligns = a;
+				this.headerTemplate = 0;
+			}
+			if (!this.inTable) {
+				// Keep the header with the first row
+				this.CheckPageBreak(this.headerLayout.getHeight() + height);
+				this._drawheader();
+			} else if (this.getY() + height > this.pageBreakTrigger) {
+				this.addPage(this.currentOrientation);
+				this._drawheader();
+			}
+		}
+		this.inTable = true;
+		this._drawrow(row, w, a);
+	}
+
+	/**
+	 * Draws the header row at the current position. It is recorded as a
+	 * template the first time, and the template is placed from then on.
+	 */
+	private void _drawheader() throws IOException {
+		if ((this.headerTemplate == 0) && !this._isrecordingtemplate()) {
+			this.headerX = this.x;
+			this.headerY = this.y;
+			this.beginTemplate();
+			this._drawrow(this.headerLayout, this.headerWidths, this.headerAligns);
+			this.headerTemplate = this.endTemplate();
+		}
+		if (this.headerTemplate == 0) {
+			this._drawrow(this.headerLayout, this.headerWidths, this.headerAligns);
+		} else {
+			this.useTemplate(this.headerTemplate, this.x - this.headerX, this.y - this.headerY, 1);
+			this.Ln(this.headerLayout.getHeight());
+		}
+	}
+
+	private void _checkcolumns(List<String> data) {
 		if (widths.size() != data.size()) {
 			throw new IllegalArgumentException("The number of rows (" + data.size()
 					+ ") is not equal to the number of widths (" + widths.size() + ")");
@@ -27,33 +268,68 @@ public abstract class PdfMultiCellTable extends FPDF {
 			throw new IllegalArgumentException("The number of rows (" + data.size()
 					+ ") is not equal to the number of alignments (" + alignments.size() + ")");
 		}
-		if (this.state != PDFCreationState.PAGE) {
-			throw new PDFCreationError("Add rows are only availible in PAGE state");
+	}
+
+	private float[] _columnwidths() {
+		float[] w = new float[this.widths.size()];
+		for (int i = 0; i < w.length; i++) {
+			w[i] = this.widths.get(i);
 		}
+		return w;
+	}
+
+	/**
+	 * Replaces the columns of width 0 by the width left up to the right
+	 * margin, from where they start in a row starting at the current
+	 * position. Returns the widths themselves if none is 0.
+	 */
+	private float[] _resolvewidths(float[] w) {
+		float[] resolved = w;
+		float x = this.x;
+		for (int i = 0; i < w.length; i++) {
+			if (w[i] == 0) {
+				if (resolved == w) {
+					resolved = w.clone();
+				}
+				resolved[i] = this.w - this.rMargin - x;
+			}
+			x += resolved[i];
+		}
+		return resolved;
+	}
+
+	private Alignment[] _columnaligns() {
+		return this.alignments.toArray(new Alignment[0]);
+	}
+
+	private RowLayout _layout(List<String> data, RowLayout row, float[] w, Alignment[] a) {
 		// Calculate the height of the row
-		float nb = 0;
-		for (int i = 0; i < data.size(); i++)
-			nb = Math.max(nb, this.NbLines(this.widths.get(i), data.get(i)));
-		float height = 5 * nb;
-		// Issue a page break first if needed
-		this.CheckPageBreak(height);
+		int nb = 0;
+		for (int i = 0; i < w.length; i++) {
+			String txt = data.get(i);
+			txt = (txt == null) ? "" : _stripcr(txt);
+			nb = Math.max(nb, this.NbLines(w[i], txt, row.setText(i, txt, this.currentFont), a[i]));
+		}
+		row.setLaidOut(this.currentFont, this.fontSize, w, a, this.lineHeight, this.padding,
+				this.lineHeight * nb + 2 * this.padding);
+		return row;
+	}
+
+	private void _drawrow(RowLayout row, float[] w, Alignment[] a) throws IOException {
+		float height = row.getHeight();
+		float y = this.y;
 		// Draw the cells of the row
-		for (int i = 0; i < data.size(); i++) {
-			float width = this.widths.get(i);
-			Alignment a = this.alignments.get(i);
+		for (int i = 0; i < w.length; i++) {
 			// Save the current position
-			float x = this.getX();
-			float y = this.getY();
+			float x = this.x;
 			// Draw the border
-			this.Rect(new Coordinate(x, y), width, height, DrawMode.SHAPE);
+			this.content.re(x * this.k, (this.h - y) * this.k, w[i] * this.k, -height * this.k).write(' ')
+					.write(DrawMode.SHAPE.getOp()).newline();
 			// Print the text
-			String txt = data.get(i);
-			if (txt == null) {
-				txt = "";
-			}
-			this.MultiCell(width, 5, txt, new Borders(false, false, false, false), a, false);
+			this.y = y + this.padding;
+			this._multicell(w[i], this.lineHeight, row.getText(i), row.getLines(i), null, a[i], false);
 			// Put the position to the right of the cell
-			this.setXY(x + width, y);
+			this.setXY(x + w[i], y);
 		}
 		// Go to the next line
 		this.Ln(height);
@@ -93,53 +369,12 @@ public abstract class PdfMultiCellTable extends FPDF {
 			this.addPage(this.currentOrientation);
 	}
 
-	private int NbLines(float w, String txt) {
-		if (this.currentFont == null) {
-			throw new PDFCreationError("No default Font. Use SetFont to set a default Font.");
-		}
+	private int NbLines(float w, String s, LineBreaker lines, Alignment align) {
 		// Computes the number of lines a MultiCell of width w will take
-		Font cw = this.currentFont;
-		if (w == 0)
-			w = this.w - this.rMargin - this.x;
 		float wmax = (w - 2 * this.cMargin) * 1000 / this.fontSize;
-		if (txt == null) {
-			txt = "";
-		}
-		String s = txt.replaceAll("\r", "");
 		int nb = s.length();
 		if ((nb > 0) && (s.charAt(nb - 1) == '\n'))
 			nb--;
-		int sep = -1;
-		int i = 0;
-		int j = 0;
-		int l = 0;
-		int nl = 1;
-		while (i < nb) {
-			char c = s.charAt(i);
-			if (c == '\n') {
-				i++;
-				sep = -1;
-				j = i;
-				l = 0;
-				nl++;
-				continue;
-			}
-			if (c == ' ')
-				sep = i;
-			l += cw.getCw().get(c);
-			if (l > wmax) {
-				if (sep == -1) {
-					if (i == j)
-						i++;
-				} else
-					i = sep + 1;
-				sep = -1;
-				j = i;
-				l = 0;
-				nl++;
-			} else
-				i++;
-		}
-		return nl;
+		return this._breaklines(lines, s, nb, wmax, align);
 	}
 }
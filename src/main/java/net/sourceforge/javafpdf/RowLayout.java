@@ -0,0 +1,114 @@
+package net.sourceforge.javafpdf;
+
+import java.util.Arrays;
+
+/**
+ * The layout of a {@link PdfMultiCellTable} row: the line breaks of each
+ * cell and the height of the row. It is computed once by
+ * {@link PdfMultiCellTable#layout(java.util.List)} and used again to draw the
+ * row, so callers can also use it to work out pagination in advance. It is
+ * only valid for the font, column widths and alignments, line height and
+ * padding it was laid out with; drawing it after any of them changed is an
+ * error. Columns of width 0 are recorded with the width they got up to the
+ * right margin, so such a row must also be drawn where it was laid out.
+ *
+ * @since 1.5.3
+ */
+public final class RowLayout {
+	private final String[] texts;
+
+	private final LineBreaker[] lines;
+
+	private Font font;
+
+	private float fontSize;
+
+	private float[] widths;
+
+	private Alignment[] aligns;
+
+	private float lineHeight;
+
+	private float padding;
+
+	private float height;
+
+	/**
+	 * Constructor. Creates an empty layout, to be filled by the table.
+	 *
+	 * @param columns
+	 *            the number of cells
+	 */
+	RowLayout(final int columns) {
+		this.texts = new String[columns];
+		this.lines = new LineBreaker[columns];
+	}
+
+	/**
+	 * @return the height of the row, in user units.
+	 */
+	public float getHeight() {
+		return this.height;
+	}
+
+	/**
+	 * @return the number of cells.
+	 */
+	public int getColumns() {
+		return this.texts.length;
+	}
+
+	/**
+	 * @param column
+	 *            index of a cell
+	 * @return the number of lines of that cell.
+	 */
+	public int getLineCount(final int column) {
+		return this.lines[column].getCount();
+	}
+
+	String getText(final int column) {
+		return this.texts[column];
+	}
+
+	/**
+	 * Sets the text of a cell, returning the line breaker to lay it out with.
+	 * Breakers are reused as long as the font does not change.
+	 */
+	LineBreaker setText(final int column, final String text, final Font font) {
+		this.texts[column] = text;
+		if ((this.lines[column] == null) || (font != this.font)) {
+			this.lines[column] = new LineBreaker(font.getCw());
+		}
+		return this.lines[column];
+	}
+
+	LineBreaker getLines(final int column) {
+		return this.lines[column];
+	}
+
+	/**
+	 * Completes the layout, once the text of every cell is set, recording
+	 * what it was laid out with.
+	 */
+	void setLaidOut(final Font font, final float fontSize, final float[] widths, final Alignment[] aligns,
+			final float lineHeight, final float padding, final float height) {
+		this.font = font;
+		this.fontSize = fontSize;
+		this.widths = widths;
+		this.aligns = aligns;
+		this.lineHeight = lineHeight;
+		this.padding = padding;
+		this.height = height;
+	}
+
+	/**
+	 * @return whether the row was laid out in this font and with these
+	 *         columns, line height and padding.
+	 */
+	boolean isLaidOutWith(final Font font, final float fontSize, final float[] widths, final Alignment[] aligns,
+			final float lineHeight, final float padding) {
+		return (this.font == font) && (this.fontSize == fontSize) && Arrays.equals(this.widths, widths)
+				&& Arrays.equals(this.aligns, aligns) && (this.lineHeight == lineHeight) && (this.padding == padding);
+	}
+}
@@ -0,0 +1,587 @@
+package net.sourceforge.javafpdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A TrueType font file, used as a simple font with WinAnsi encoding. The
+ * tables are parsed once per file and shared by all documents; subsets are
+ * built per document from the characters it uses.
+ *
+ * @since 1.5.3
+ */
+class TrueTypeFont {
+    /**
+     * Parsed fonts, by path, modification time and size.
+     */
+    private static final ConcurrentMap<String, TrueTypeFont> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Tables copied unchanged into subsets.
+     */
+    private static final String[] SUBSET_TABLES = {"OS/2", "cvt ", "fpgm", "name", "prep"};
+
+    private final byte[] data;
+
+    private final Map<String, int[]> tables = new TreeMap<>();
+
+    private final String postScriptName;
+
+    private final int unitsPerEm;
+
+    private final int numGlyphs;
+
+    private final boolean longLoca;
+
+    private final int[] bbox;
+
+    private final int ascent;
+
+    private final int descent;
+
+    private final int capHeight;
+
+    private final int italicAngle;
+
+    private final boolean fixedPitch;
+
+    private final int stemV;
+
+    private final int underlinePosition;
+
+    private final int underlineThickness;
+
+    private final int missingWidth;
+
+    private final int[] glyphs = new int[256];
+
+    private final int[] widths = new int[256];
+
+    private final Charwidths cw;
+
+    /**
+     * Returns the parsed font for a file. Each file is parsed once; it is
+     * parsed again if it has been modified.
+     *
+     * @param file the font file
+     * @return the font
+     * @throws IOException if the file can not be read or is not a TrueType
+     *                     font.
+     */
+    static TrueTypeFont load(final File file) throws IOException {
+        final String key = file.getCanonicalPath() + ':' + file.lastModified() + ':' + file.length();
+        final TrueTypeFont font = cache.get(key);
+        if (font != null) {
+            return font;
+        }
+        try {
+            return cache.computeIfAbsent(key, k -> {
+                try {
+                    return new TrueTypeFont(Files.readAllBytes(file.toPath()), file.getName());
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Constructor. Parses a TrueType font.
+     *
+     * @param data     the font file
+     * @param fileName the file name, used for error messages and as fallback
+     *                 font name
+     * @throws IOException if the data is not a TrueType font.
+     */
+    TrueTypeFont(final byte[] data, final String fileName) throws IOException {
+        this.data = data;
+        try {
+            final int version = this.u32(0);
+            if (version == 0x4F54544F) {
+                throw new IOException("Fonts with PostScript outlines are not supported: " + fileName);
+            }
+            if ((version != 0x00010000) && (version != 0x74727565)) {
+                throw new IOException("Not a TrueType font: " + fileName);
+            }
+            final int count = this.u16(4);
+            for (int t = 0; t < count; t++) {
+                final int record = 12 + 16 * t;
+                final String tag = new String(data, record, 4, StandardCharsets.ISO_8859_1);
+                this.tables.put(tag, new int[] {this.u32(record + 8), this.u32(record + 12)});
+            }
+            for (final String tag : new String[] {"head", "hhea", "hmtx", "maxp", "cmap", "loca", "glyf"}) {
+                if (!this.tables.containsKey(tag)) {
+                    throw new IOException("Missing " + tag + " table in " + fileName);
+                }
+            }
+            final int head = this.offset("head");
+            this.unitsPerEm = this.u16(head + 18);
+            this.bbox = new int[] {this.scale(this.s16(head + 36)), this.scale(this.s16(head + 38)),
+                    this.scale(this.s16(head + 40)), this.scale(this.s16(head + 42))};
+            final boolean italic = (this.u16(head + 44) & 2) != 0;
+            this.longLoca = this.s16(head + 50) != 0;
+            final int hhea = this.offset("hhea");
+            final int metrics = this.u16(hhea + 34);
+            this.numGlyphs = this.u16(this.offset("maxp") + 4);
+            int ascent = this.scale(this.s16(hhea + 4));
+            int descent = this.scale(this.s16(hhea + 6));
+            int capHeight = ascent;
+            int weight = 400;
+            if (this.tables.containsKey("OS/2")) {
+                final int os2 = this.offset("OS/2");
+                weight = this.u16(os2 + 4);
+                if ((this.u16(os2 + 8) & 0x000F) == 0x0002) {
+                    throw new IOException("Font license does not allow embedding: " + fileName);
+                }
+                ascent = this.scale(this.s16(os2 + 68));
+                descent = this.scale(this.s16(os2 + 70));
+                capHeight = ((this.u16(os2) >= 2) && (this.length("OS/2") >= 90)) ? this.scale(this.s16(os2 + 88)) : ascent;
+            }
+            this.ascent = ascent;
+            this.descent = descent;
+            this.capHeight = capHeight;
+            this.stemV = 50 + (int) Math.pow(weight / 65.0, 2);
+            if (this.tables.containsKey("post")) {
+                final int post = this.offset("post");
+                this.italicAngle = this.s16(post + 4);
+                this.underlinePosition = this.scale(this.s16(post + 8));
+                this.underlineThickness = this.scale(this.s16(post + 10));
+                this.fixedPitch = this.u32(post + 12) != 0;
+            } else {
+                this.italicAngle = italic ? -12 : 0;
+                this.underlinePosition = -100;
+                this.underlineThickness = 50;
+                this.fixedPitch = false;
+            }
+            this.postScriptName = this.readPostScriptName(fileName);
+            // Widths of the WinAnsi characters
+            final int hmtx = this.offset("hmtx");
+            this.missingWidth = this.scale(this.u16(hmtx));
+            final int cmap = this.findCmap();
+            for (int c = 0; c < 256; c++) {
+                final char u = WinAnsi.decode(c);
+                final int g = ((u == 0) || (cmap < 0)) ? 0 : this.glyph(cmap, u);
+                this.glyphs[c] = (g < this.numGlyphs) ? g : 0;
+                final int m = Math.min(this.glyphs[c], metrics - 1);
+                this.widths[c] = this.scale(this.u16(hmtx + 4 * m));
+            }
+            this.cw = new Charwidths(this.widths);
+        } catch (final IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt TrueType font: " + fileName, e);
+        }
+    }
+
+    private int u16(final int pos) {
+        return ((this.data[pos] & 0xFF) << 8) | (this.data[pos + 1] & 0xFF);
+    }
+
+    private int s16(final int pos) {
+        return (short) this.u16(pos);
+    }
+
+    private int u32(final int pos) {
+        return (this.u16(pos) << 16) | this.u16(pos + 2);
+    }
+
+    private int offset(final String tag) {
+        return this.tables.get(tag)[0];
+    }
+
+    private int length(final String tag) {
+        return this.tables.get(tag)[1];
+    }
+
+    private int scale(final int v) {
+        return Math.round(v * 1000f / this.unitsPerEm);
+    }
+
+    private String readPostScriptName(final String fileName) {
+        String name = null;
+        if (this.tables.containsKey("name")) {
+            final int table = this.offset("name");
+            final int count = this.u16(table + 2);
+            final int strings = table + this.u16(table + 4);
+            for (int r = 0; (r < count) && (name == null); r++) {
+                final int record = table + 6 + 12 * r;
+                if (this.u16(record + 6) != 6) {
+                    continue;
+                }
+                final int platform = this.u16(record);
+                final int length = this.u16(record + 8);
+                final int pos = strings + this.u16(record + 10);
+                if ((platform == 3) || (platform == 0)) {
+                    name = new String(this.data, pos, length, StandardCharsets.UTF_16BE);
+                } else if (platform == 1) {
+                    name = new String(this.data, pos, length, StandardCharsets.ISO_8859_1);
+                }
+            }
+        }
+        if (name == null) {
+            name = fileName.replaceFirst("\\.[^.]*$", "");
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (final char c : name.toCharArray()) {
+            if (((c >= 'A') && (c <= 'Z')) || ((c >= 'a') && (c <= 'z')) || ((c >= '0') && (c <= '9')) || (c == '-')) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the offset of the Unicode character map, or -1.
+     */
+    private int findCmap() {
+        final int table = this.offset("cmap");
+        final int count = this.u16(table + 2);
+        int found = -1;
+        int rank = 0;
+        for (int r = 0; r < count; r++) {
+            final int record = table + 4 + 8 * r;
+            final int platform = this.u16(record);
+            final int encoding = this.u16(record + 2);
+            final int subtable = table + this.u32(record + 4);
+            final int format = this.u16(subtable);
+            if ((format != 4) && (format != 12)) {
+                continue;
+            }
+            final int score = (platform == 3) ? ((encoding == 10) ? 4 : (encoding == 1) ? 3 : 0) : (platform == 0) ? 2 : 0;
+            if (score > rank) {
+                rank = score;
+                found = subtable;
+            }
+        }
+        return found;
+    }
+
+    private int glyph(final int subtable, final char c) {
+        if (this.u16(subtable) == 12) {
+            final int groups = this.u32(subtable + 12);
+            for (int i = 0; i < groups; i++) {
+                final int group = subtable + 16 + 12 * i;
+                final int start = this.u32(group);
+                if ((c >= start) && (c <= this.u32(group + 4))) {
+                    return this.u32(group + 8) + c - start;
+                }
+            }
+            return 0;
+        }
+        final int segments = this.u16(subtable + 6) / 2;
+        final int ends = subtable + 14;
+        final int starts = ends + 2 * segments + 2;
+        final int deltas = starts + 2 * segments;
+        final int ranges = deltas + 2 * segments;
+        for (int s = 0; s < segments; s++) {
+            if (c > this.u16(ends + 2 * s)) {
+                continue;
+            }
+            final int start = this.u16(starts + 2 * s);
+            if (c < start) {
+                return 0;
+            }
+            final int delta = this.u16(deltas + 2 * s);
+            final int range = this.u16(ranges + 2 * s);
+            if (range == 0) {
+                return (c + delta) & 0xFFFF;
+            }
+            final int g = this.u16(ranges + 2 * s + range + 2 * (c - start));
+            return (g == 0) ? 0 : (g + delta) & 0xFFFF;
+        }
+        return 0;
+    }
+
+    String getPostScriptName() {
+        return this.postScriptName;
+    }
+
+    Charwidths getCharwidths() {
+        return this.cw;
+    }
+
+    int getUnderlinePosition() {
+        return this.underlinePosition;
+    }
+
+    int getUnderlineThickness() {
+        return this.underlineThickness;
+    }
+
+    /**
+     * @param c a WinAnsi code
+     * @return the width of the character, in thousandths of the font size.
+     */
+    int getWidth(final int c) {
+        return this.widths[c];
+    }
+
+    /**
+     * @return the font descriptor entries, without the font name and file.
+     */
+    String getDescriptor() {
+        int flags = 32;
+        if (this.fixedPitch) {
+            flags |= 1;
+        }
+        if (this.italicAngle != 0) {
+            flags |= 64;
+        }
+        return "/Flags " + flags + " /FontBBox [" + this.bbox[0] + " " + this.bbox[1] + " " + this.bbox[2] + " " + this.bbox[3]
+                + "] /ItalicAngle " + this.italicAngle + " /Ascent " + this.ascent + " /Descent " + this.descent
+                + " /CapHeight " + this.capHeight + " /StemV " + this.stemV + " /MissingWidth " + this.missingWidth;
+    }
+
+    private int glyphOffset(final int g) {
+        final int loca = this.offset("loca");
+        return this.longLoca ? this.u32(loca + 4 * g) : 2 * this.u16(loca + 2 * g);
+    }
+
+    /**
+     * Builds a font file holding only the glyphs of the given characters and
+     * the components they are made of. Glyphs are renumbered, and the
+     * character map only covers the given characters.
+     *
+     * @param codes the WinAnsi codes used
+     * @return the font file
+     */
+    byte[] subset(final BitSet codes) {
+        final BitSet used = new BitSet(this.numGlyphs);
+        used.set(0);
+        for (int c = codes.nextSetBit(0); c >= 0; c = codes.nextSetBit(c + 1)) {
+            used.set(this.glyphs[c]);
+        }
+        // Add the components of composite glyphs
+        final int glyf = this.offset("glyf");
+        final List<Integer> pending = new ArrayList<>();
+        for (int g = used.nextSetBit(0); g >= 0; g = used.nextSetBit(g + 1)) {
+            pending.add(g);
+        }
+        while (!pending.isEmpty()) {
+            final int g = pending.remove(pending.size() - 1);
+            final int start = this.glyphOffset(g);
+            if (this.glyphOffset(g + 1) <= start) {
+                continue;
+            }
+            for (final int pos : components(this.data, glyf + start)) {
+                final int component = this.u16(pos);
+                if ((component < this.numGlyphs) && !used.get(component)) {
+                    used.set(component);
+                    pending.add(component);
+                }
+            }
+        }
+        // Used glyphs are renumbered in their original order
+        final int count = used.cardinality();
+        final int[] ids = new int[this.numGlyphs];
+        int size = 0;
+        int id = 0;
+        for (int g = used.nextSetBit(0); (g >= 0) && (g < this.numGlyphs); g = used.nextSetBit(g + 1)) {
+            ids[g] = id++;
+            size += (this.glyphOffset(g + 1) - this.glyphOffset(g) + 3) & ~3;
+        }
+        // Outlines, with a long offset table, and metrics
+        final byte[] newGlyf = new byte[size];
+        final byte[] newLoca = new byte[4 * (count + 1)];
+        final byte[] newHmtx = new byte[4 * count];
+        final int hmtx = this.offset("hmtx");
+        final int metrics = this.u16(this.offset("hhea") + 34);
+        int offset = 0;
+        id = 0;
+        for (int g = used.nextSetBit(0); (g >= 0) && (g < this.numGlyphs); g = used.nextSetBit(g + 1)) {
+            putU32(newLoca, 4 * id, offset);
+            putU16(newHmtx, 4 * id, this.u16(hmtx + 4 * Math.min(g, metrics - 1)));
+            putU16(newHmtx, 4 * id + 2, this.u16((g < metrics) ? hmtx + 4 * g + 2 : hmtx + 4 * metrics + 2 * (g - metrics)));
+            final int start = this.glyphOffset(g);
+            final int length = this.glyphOffset(g + 1) - start;
+            if (length > 0) {
+                System.arraycopy(this.data, glyf + start, newGlyf, offset, length);
+                for (final int pos : components(newGlyf, offset)) {
+                    putU16(newGlyf, pos, ids[Math.min(this.u16(glyf + start + pos - offset), this.numGlyphs - 1)]);
+                }
+                offset += (length + 3) & ~3;
+            }
+            id++;
+        }
+        putU32(newLoca, 4 * count, offset);
+        final byte[] newHead = this.table("head");
+        putU32(newHead, 8, 0);
+        newHead[50] = 0;
+        newHead[51] = 1;
+        final byte[] newHhea = this.table("hhea");
+        putU16(newHhea, 34, count);
+        final byte[] newMaxp = this.table("maxp");
+        putU16(newMaxp, 4, count);
+        final Map<String, byte[]> out = new TreeMap<>();
+        for (final String tag : SUBSET_TABLES) {
+            if (this.tables.containsKey(tag)) {
+                out.put(tag, this.table(tag));
+            }
+        }
+        if (this.tables.containsKey("post")) {
+            // Version 3: no glyph names
+            final byte[] post = new byte[32];
+            System.arraycopy(this.data, this.offset("post"), post, 0, 32);
+            putU32(post, 0, 0x00030000);
+            out.put("post", post);
+        }
+        out.put("cmap", this.cmap(codes, ids));
+        out.put("glyf", newGlyf);
+        out.put("head", newHead);
+        out.put("hhea", newHhea);
+        out.put("hmtx", newHmtx);
+        out.put("loca", newLoca);
+        out.put("maxp", newMaxp);
+        final byte[] font = write(out);
+        // Checksum adjustment of the whole file
+        final int headRecord = 12 + 16 * new ArrayList<>(out.keySet()).indexOf("head");
+        putU32(font, u32(font, headRecord + 8) + 8, 0xB1B0AFBA - checksum(font, 0, font.length));
+        return font;
+    }
+
+    /**
+     * Builds a Unicode character map of the given WinAnsi codes.
+     */
+    private byte[] cmap(final BitSet codes, final int[] ids) {
+        final TreeMap<Character, Integer> map = new TreeMap<>();
+        for (int c = codes.nextSetBit(0); (c >= 0) && (c < 256); c = codes.nextSetBit(c + 1)) {
+            final char u = WinAnsi.decode(c);
+            if ((u != 0) && (this.glyphs[c] != 0)) {
+                map.put(u, ids[this.glyphs[c]]);
+            }
+        }
+        // One segment per character, and the final 0xFFFF segment
+        final int segments = map.size() + 1;
+        final byte[] b = new byte[12 + 16 + 8 * segments];
+        putU16(b, 2, 1);
+        putU16(b, 4, 3);
+        putU16(b, 6, 1);
+        putU32(b, 8, 12);
+        final int t = 12;
+        putU16(b, t, 4);
+        putU16(b, t + 2, b.length - t);
+        putU16(b, t + 6, 2 * segments);
+        int entrySelector = 0;
+        while ((2 << entrySelector) <= segments) {
+            entrySelector++;
+        }
+        putU16(b, t + 8, 2 << entrySelector);
+        putU16(b, t + 10, entrySelector);
+        putU16(b, t + 12, 2 * segments - (2 << entrySelector));
+        final int ends = t + 14;
+        final int starts = ends + 2 * segments + 2;
+        final int deltas = starts + 2 * segments;
+        int s = 0;
+        for (final Map.Entry<Character, Integer> e : map.entrySet()) {
+            putU16(b, ends + 2 * s, e.getKey());
+            putU16(b, starts + 2 * s, e.getKey());
+            putU16(b, deltas + 2 * s, e.getValue() - e.getKey());
+            s++;
+        }
+        putU16(b, ends + 2 * s, 0xFFFF);
+        putU16(b, starts + 2 * s, 0xFFFF);
+        putU16(b, deltas + 2 * s, 1);
+        return b;
+    }
+
+    /**
+     * @return the positions of the component glyph numbers of a composite
+     *         glyph, none for a simple glyph.
+     */
+    private static List<Integer> components(final byte[] b, final int glyph) {
+        final List<Integer> positions = new ArrayList<>();
+        if (((b[glyph] & 0xFF) << 8 | (b[glyph + 1] & 0xFF)) < 0x8000) {
+            return positions;
+        }
+        int pos = glyph + 10;
+        int flags;
+        do {
+            flags = ((b[pos] & 0xFF) << 8) | (b[pos + 1] & 0xFF);
+            positions.add(pos + 2);
+            pos += 4 + (((flags & 0x0001) != 0) ? 4 : 2);
+            if ((flags & 0x0008) != 0) {
+                pos += 2;
+            } else if ((flags & 0x0040) != 0) {
+                pos += 4;
+            } else if ((flags & 0x0080) != 0) {
+                pos += 8;
+            }
+        } while ((flags & 0x0020) != 0);
+        return positions;
+    }
+
+    private byte[] table(final String tag) {
+        final byte[] b = new byte[this.length(tag)];
+        System.arraycopy(this.data, this.offset(tag), b, 0, b.length);
+        return b;
+    }
+
+    private static byte[] write(final Map<String, byte[]> tables) {
+        final int count = tables.size();
+        int size = 12 + 16 * count;
+        for (final byte[] t : tables.values()) {
+            size += (t.length + 3) & ~3;
+        }
+        final byte[] font = new byte[size];
+        putU32(font, 0, 0x00010000);
+        int entrySelector = 0;
+        while ((2 << entrySelector) <= count) {
+            entrySelector++;
+        }
+        final int searchRange = 16 << entrySelector;
+        putU16(font, 4, count);
+        putU16(font, 6, searchRange);
+        putU16(font, 8, entrySelector);
+        putU16(font, 10, 16 * count - searchRange);
+        int record = 12;
+        int offset = 12 + 16 * count;
+        for (final Map.Entry<String, byte[]> table : tables.entrySet()) {
+            final byte[] t = table.getValue();
+            final byte[] tag = table.getKey().getBytes(StandardCharsets.ISO_8859_1);
+            System.arraycopy(tag, 0, font, record, 4);
+            System.arraycopy(t, 0, font, offset, t.length);
+            putU32(font, record + 4, checksum(font, offset, t.length));
+            putU32(font, record + 8, offset);
+            putU32(font, record + 12, t.length);
+            record += 16;
+            offset += (t.length + 3) & ~3;
+        }
+        return font;
+    }
+
+    private static int checksum(final byte[] b, final int offset, final int length) {
+        int sum = 0;
+        for (int i = 0; i < length; i += 4) {
+            int v = 0;
+            for (int j = 0; j < 4; j++) {
+                v = (v << 8) | (((i + j < length) ? b[offset + i + j] : 0) & 0xFF);
+            }
+            sum += v;
+        }
+        return sum;
+    }
+
+    private static int u32(final byte[] b, final int pos) {
+        return ((b[pos] & 0xFF) << 24) | ((b[pos + 1] & 0xFF) << 16) | ((b[pos + 2] & 0xFF) << 8) | (b[pos + 3] & 0xFF);
+    }
+
+    private static void putU16(final byte[] b, final int pos, final int v) {
+        b[pos] = (byte) (v >>> 8);
+        b[pos + 1] = (byte) v;
+    }
+
+    private static void putU32(final byte[] b, final int pos, final int v) {
+        putU16(b, pos, v >>> 16);
+        putU16(b, pos + 2, v);
+    }
+}
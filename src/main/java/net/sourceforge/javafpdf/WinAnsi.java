@@ -0,0 +1,51 @@
+package net.sourceforge.javafpdf;
+
+/**
+ * The WinAnsi (Windows-1252) encoding used for text with the core and
+ * embedded TrueType fonts. It matches ISO-8859-1 except for the codes 128 to
+ * 159, which hold the euro sign, typographic quotes, dashes and a few more
+ * letters instead of control characters.
+ *
+ * @since 1.5.3
+ */
+final class WinAnsi {
+    /**
+     * Unicode values of the codes 128 to 159, 0 for unused codes.
+     */
+    private static final char[] HIGH = {0x20AC, 0, 0x201A, 0x0192, 0x201E, 0x2026, 0x2020, 0x2021, 0x02C6, 0x2030,
+            0x0160, 0x2039, 0x0152, 0, 0x017D, 0, 0, 0x2018, 0x2019, 0x201C, 0x201D, 0x2022, 0x2013, 0x2014, 0x02DC, 0x2122,
+            0x0161, 0x203A, 0x0153, 0, 0x017E, 0x0178};
+
+    private WinAnsi() {
+    }
+
+    /**
+     * Returns the code of a character. Characters below 256 are their own
+     * code, as they always were; other characters are mapped to the codes 128
+     * to 159, or to <code>?</code> if the encoding does not have them.
+     *
+     * @param c a character
+     * @return the code, from 0 to 255.
+     */
+    static int encode(final char c) {
+        if (c < 256) {
+            return c;
+        }
+        for (int i = 0; i < HIGH.length; i++) {
+            if (HIGH[i] == c) {
+                return 128 + i;
+            }
+        }
+        return '?';
+    }
+
+    /**
+     * Returns the Unicode value of a code.
+     *
+     * @param code a code, from 0 to 255
+     * @return the character, 0 for the unused codes.
+     */
+    static char decode(final int code) {
+        return ((code >= 128) && (code < 160)) ? HIGH[code - 128] : (char) code;
+    }
+}
@@ -1,37 +1,225 @@
 package net.sourceforge.javafpdf.util;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.zip.DeflaterInputStream;
-import java.util.zip.DeflaterOutputStream;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+/**
+ * Deflate compression with a given level and strategy, and decompression.
+ * Deflaters are kept in a small pool and reused, so their native memory is
+ * not allocated and freed again for every stream.
+ */
 public class Compressor {
-	public static byte[] compress(byte[] content) {
-		ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+	/**
+	 * Default level and strategy, as used by <code>DeflaterOutputStream</code>.
+	 */
+	public static final Compressor DEFAULT = new Compressor(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY, 8192);
+
+	private final int level;
+
+	private final int strategy;
+
+	private final int bufferSize;
+
+	private final BlockingQueue<Deflater> pool;
+
+	/**
+	 * Creates a compressor keeping one Deflater per processor.
+	 *
+	 * @param level
+	 *            the compression level, from <code>Deflater.BEST_SPEED</code>
+	 *            to <code>Deflater.BEST_COMPRESSION</code>, or
+	 *            <code>Deflater.DEFAULT_COMPRESSION</code>
+	 * @param strategy
+	 *            the strategy, such as <code>Deflater.FILTERED</code>
+	 * @param bufferSize
+	 *            the initial size of the output buffer
+	 */
+	public Compressor(int level, int strategy, int bufferSize) {
+		if (((level < 0) || (level > 9)) && (level != Deflater.DEFAULT_COMPRESSION)) {
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		if ((strategy != Deflater.DEFAULT_STRATEGY) && (strategy != Deflater.FILTERED) && (strategy != Deflater.HUFFMAN_ONLY)) {
+			throw new IllegalArgumentException("Invalid compression strategy: " + strategy);
+		}
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+		}
+		this.level = level;
+		this.strategy = strategy;
+		this.bufferSize = bufferSize;
+		this.pool = new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors());
+	}
+
+	public int getLevel() {
+		return this.level;
+	}
+
+	public int getStrategy() {
+		return this.strategy;
+	}
+
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+
+	/**
+	 * Takes a Deflater from the pool, or creates one. It must be given back
+	 * with {@link #release(Deflater)}.
+	 *
+	 * @return a Deflater set to the level and strategy of this compressor.
+	 */
+	public Deflater acquire() {
+		Deflater deflater = this.pool.poll();
+		if (deflater == null) {
+			deflater = new Deflater(this.level);
+			deflater.setStrategy(this.strategy);
+		}
+		return deflater;
+	}
+
+	/**
+	 * Gives a Deflater back to the pool, or frees it if the pool is full.
+	 *
+	 * @param deflater
+	 *            a Deflater from {@link #acquire()}
+	 */
+	public void release(Deflater deflater) {
+		deflater.reset();
+		if (!this.pool.offer(deflater)) {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Compresses data in zlib format.
+	 *
+	 * @param content
+	 *            the data
+	 * @return the compressed data.
+	 */
+	public byte[] deflate(byte[] content) {
+		Deflater deflater = acquire();
 		try {
-			DeflaterOutputStream gzipOutputStream = new DeflaterOutputStream(byteArrayOutputStream);
-			gzipOutputStream.write(content);
-			gzipOutputStream.close();
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+			deflater.setInput(content);
+			deflater.finish();
+			byte[] out = new byte[Math.min(this.bufferSize, content.length + 64)];
+			int count = 0;
+			while (!deflater.finished()) {
+				if (count == out.length) {
+					out = Arrays.copyOf(out, out.length << 1);
+				}
+				count += deflater.deflate(out, count, out.length - count);
+			}
+			return (count == out.length) ? out : Arrays.copyOf(out, count);
+		} finally {
+			release(deflater);
 		}
-		return byteArrayOutputStream.toByteArray();
 	}
 
+	/**
+	 * Compresses data with the default level and strategy.
+	 *
+	 * @param content
+	 *            the data
+	 * @return the compressed data.
+	 */
+	public static byte[] compress(byte[] content) {
+		return DEFAULT.deflate(content);
+	}
+
+	/**
+	 * Decompresses zlib data.
+	 *
+	 * @param contentBytes
+	 *            the compressed data
+	 * @return the data.
+	 */
 	public static byte[] decompress(byte[] contentBytes) {
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		return decompress(contentBytes, (int) Math.min(4L * contentBytes.length, Integer.MAX_VALUE - 8));
+	}
+
+	/**
+	 * Decompresses zlib data into an output buffer of the expected size,
+	 * which is only grown if the data turns out to be larger.
+	 *
+	 * @param contentBytes
+	 *            the compressed data
+	 * @param expectedSize
+	 *            the expected size of the data
+	 * @return the data.
+	 */
+	public static byte[] decompress(byte[] contentBytes, int expectedSize) {
+		Inflater inflater = new Inflater();
 		try {
-			InputStream input = new DeflaterInputStream(new ByteArrayInputStream(contentBytes));
-			byte[] buf = new byte[1024];
-			int len = -1;
-			while ((len = input.read(buf)) > 0) {
-				out.write(buf, 0, len);
+			inflater.setInput(contentBytes);
+			byte[] out = new byte[Math.max(expectedSize, 64)];
+			int count = 0;
+			while (!inflater.finished()) {
+				if (count == out.length) {
+					out = Arrays.copyOf(out, out.length << 1);
+				}
+				int n = inflater.inflate(out, count, out.length - count);
+				if ((n == 0) && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new RuntimeException(new EOFException("Truncated compressed data"));
+				}
+				count += n;
 			}
-		} catch (IOException e) {
+			return (count == out.length) ? out : Arrays.copyOf(out, count);
+		} catch (DataFormatException e) {
 			throw new RuntimeException(e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Inflates exactly <code>len</code> bytes from compressed data split
+	 * into chunks, such as the IDAT chunks of a PNG file. The inflater is
+	 * given the next chunk whenever it needs more input, so the compressed
+	 * data is not copied and can be read in pieces.
+	 *
+	 * @param inflater
+	 *            the inflater, keeping its state between calls
+	 * @param chunks
+	 *            the compressed chunks not yet given to the inflater
+	 * @param b
+	 *            the buffer to fill
+	 * @param off
+	 *            offset in the buffer
+	 * @param len
+	 *            number of bytes to inflate
+	 * @throws DataFormatException
+	 *             if the data is corrupt.
+	 * @throws EOFException
+	 *             if the data ends before <code>len</code> bytes.
+	 */
+	public static void inflateFully(Inflater inflater, Iterator<ByteBuffer> chunks, byte[] b, int off, int len)
+			throws DataFormatException, EOFException {
+		int end = off + len;
+		while (off < end) {
+			int n = inflater.inflate(b, off, end - off);
+			if (n == 0) {
+				if (inflater.needsInput() && chunks.hasNext()) {
+					ByteBuffer chunk = chunks.next();
+					if (chunk.hasArray()) {
+						inflater.setInput(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+					} else {
+						byte[] bytes = new byte[chunk.remaining()];
+						chunk.duplicate().get(bytes);
+						inflater.setInput(bytes);
+					}
+				} else if (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()) {
+					throw new EOFException("Truncated compressed data");
+				}
+			}
+			off += n;
 		}
-		return out.toByteArray();
 	}
 }
@@ -0,0 +1,172 @@
+package net.sourceforge.javafpdf.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output sink for a PDF document. Bytes are kept in fixed size blocks until
+ * they are flushed to an optional target stream, and a running counter gives
+ * the current position in the document in constant time.
+ */
+public class OutputBuffer {
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	private final OutputStream out;
+
+	private final List<byte[]> blocks = new ArrayList<>();
+
+	private byte[] block;
+
+	private int count;
+
+	private long flushed;
+
+	/**
+	 * Creates a buffer holding the whole document in memory.
+	 */
+	public OutputBuffer() {
+		this(null);
+	}
+
+	/**
+	 * Creates a buffer writing to the given stream on {@link #flush()}.
+	 *
+	 * @param out
+	 *            the target stream
+	 */
+	public OutputBuffer(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * @return whether this buffer writes to a stream.
+	 */
+	public boolean isStreaming() {
+		return this.out != null;
+	}
+
+	/**
+	 * @return the number of bytes written so far, including flushed bytes.
+	 */
+	public long position() {
+		return this.flushed + size();
+	}
+
+	/**
+	 * @return the number of bytes not yet flushed.
+	 */
+	public int size() {
+		return this.blocks.size() * BLOCK_SIZE + this.count;
+	}
+
+	public void write(byte[] b) {
+		write(b, 0, b.length);
+	}
+
+	public void write(byte[] b, int off, int len) {
+		while (len > 0) {
+			if ((this.block == null) || (this.count == BLOCK_SIZE)) {
+				nextBlock();
+			}
+			int n = Math.min(len, BLOCK_SIZE - this.count);
+			System.arraycopy(b, off, this.block, this.count, n);
+			this.count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Writes the remaining bytes of a buffer. Heap buffers are copied
+	 * straight from their array, other buffers such as memory mapped files
+	 * block by block.
+	 *
+	 * @param b
+	 *            the bytes; its position is moved to its limit
+	 */
+	public void write(ByteBuffer b) {
+		if (b.hasArray()) {
+			write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+			b.position(b.limit());
+			return;
+		}
+		while (b.hasRemaining()) {
+			if ((this.block == null) || (this.count == BLOCK_SIZE)) {
+				nextBlock();
+			}
+			int n = Math.min(b.remaining(), BLOCK_SIZE - this.count);
+			b.get(this.block, this.count, n);
+			this.count += n;
+		}
+	}
+
+	public void write(int b) {
+		if ((this.block == null) || (this.count == BLOCK_SIZE)) {
+			nextBlock();
+		}
+		this.block[this.count++] = (byte) b;
+	}
+
+	private void nextBlock() {
+		if (this.block != null) {
+			this.blocks.add(this.block);
+		}
+		this.block = new byte[BLOCK_SIZE];
+		this.count = 0;
+	}
+
+	/**
+	 * Writes the buffered bytes to the target stream and releases them. Does
+	 * nothing if there is no target stream.
+	 *
+	 * @throws IOException
+	 *             if the stream can not be written.
+	 */
+	public void flush() throws IOException {
+		if (this.out == null) {
+			return;
+		}
+		long n = size();
+		writeTo(this.out);
+		this.flushed += n;
+		this.blocks.clear();
+		this.count = 0;
+		this.out.flush();
+	}
+
+	/**
+	 * Writes the buffered bytes to a stream.
+	 *
+	 * @param target
+	 *            the stream
+	 * @throws IOException
+	 *             if the stream can not be written.
+	 */
+	public void writeTo(OutputStream target) throws IOException {
+		for (byte[] b : this.blocks) {
+			target.write(b);
+		}
+		if (this.block != null) {
+			target.write(this.block, 0, this.count);
+		}
+	}
+
+	/**
+	 * @return a copy of the buffered bytes.
+	 */
+	public byte[] toByteArray() {
+		byte[] bytes = new byte[size()];
+		int offset = 0;
+		for (byte[] b : this.blocks) {
+			System.arraycopy(b, 0, bytes, offset, b.length);
+			offset += b.length;
+		}
+		if (this.block != null) {
+			System.arraycopy(this.block, 0, bytes, offset, this.count);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,103 @@
+package net.sourceforge.javafpdf.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the chunks of a PNG file held in a buffer, which may be a memory
+ * mapped file. Chunk data is returned as a view of the buffer, not copied.
+ */
+public class PngChunkReader {
+	private static final byte[] SIGNATURE = { (byte) 137, 'P', 'N', 'G', 13, 10, 26, 10 };
+
+	private final ByteBuffer in;
+
+	private final boolean checkCrc;
+
+	private String type;
+
+	private ByteBuffer data;
+
+	/**
+	 * Creates a reader positioned before the first chunk.
+	 *
+	 * @param in
+	 *            the PNG file, from its current position
+	 * @param checkCrc
+	 *            whether to verify the checksum of each chunk
+	 * @throws IOException
+	 *             if the buffer does not start with a PNG signature.
+	 */
+	public PngChunkReader(ByteBuffer in, boolean checkCrc) throws IOException {
+		this.in = in.slice().order(ByteOrder.BIG_ENDIAN);
+		this.checkCrc = checkCrc;
+		if (this.in.remaining() < SIGNATURE.length) {
+			throw new IOException("Not a PNG file");
+		}
+		for (byte b : SIGNATURE) {
+			if (this.in.get() != b) {
+				throw new IOException("Not a PNG file");
+			}
+		}
+	}
+
+	/**
+	 * Moves to the next chunk.
+	 *
+	 * @return <code>false</code> if there are no more chunks.
+	 * @throws IOException
+	 *             if the chunk is truncated or its checksum is wrong.
+	 */
+	public boolean next() throws IOException {
+		if (!this.in.hasRemaining()) {
+			this.type = null;
+			this.data = null;
+			return false;
+		}
+		if (this.in.remaining() < 8) {
+			throw new IOException("Truncated PNG chunk header");
+		}
+		int start = this.in.position();
+		int length = this.in.getInt();
+		char[] chars = new char[4];
+		for (int i = 0; i < 4; i++) {
+			chars[i] = (char) (this.in.get() & 0xFF);
+		}
+		this.type = new String(chars);
+		if ((length < 0) || (this.in.remaining() < length + 4)) {
+			throw new IOException("Truncated PNG chunk " + this.type);
+		}
+		ByteBuffer d = this.in.duplicate();
+		d.limit(d.position() + length);
+		this.data = d.slice();
+		this.in.position(this.in.position() + length);
+		int crc = this.in.getInt();
+		if (this.checkCrc) {
+			CRC32 check = new CRC32();
+			ByteBuffer covered = this.in.duplicate();
+			covered.position(start + 4);
+			covered.limit(start + 8 + length);
+			check.update(covered);
+			if ((int) check.getValue() != crc) {
+				throw new IOException("CRC error in PNG chunk " + this.type);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the type of the current chunk, such as <code>IDAT</code>.
+	 */
+	public String getType() {
+		return this.type;
+	}
+
+	/**
+	 * @return the data of the current chunk, as a view of the file buffer.
+	 */
+	public ByteBuffer getData() {
+		return this.data.duplicate();
+	}
+}
@@ -0,0 +1,51 @@
+package net.sourceforge.javafpdf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class CharwidthsTest {
+    @Test
+    public void widths() throws IOException {
+        FPDF.preloadCoreFonts();
+        final Charwidths cw = FPDF.getCharwidths("helvetica");
+        assertEquals(278, cw.get(' '));
+        assertEquals(667, cw.get('A'));
+        assertEquals(556, cw.get('€'));
+        assertEquals(cw.get((char) 150), cw.get('\u2013'));
+        assertEquals(cw.get('?'), cw.get('\u0416'));
+        assertEquals(556 + 556, cw.width("\u20ac\u0416", 0, 2));
+        assertEquals(278 + 667 + 278 + 667, cw.width("x A A", 1, 5));
+    }
+
+    @Test
+    public void sharedBetweenThreads() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<Charwidths>> results = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                results.add(executor.submit(new Callable<Charwidths>() {
+                    @Override
+                    public Charwidths call() throws IOException {
+                        return FPDF.getCharwidths("timesBI");
+                    }
+                }));
+            }
+            final Charwidths first = results.get(0).get();
+            for (final Future<Charwidths> result : results) {
+                assertSame(first, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package net.sourceforge.javafpdf;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ContentStreamTest {
+    private static final double[] EDGES = {0, -0.0, 0.005, -0.005, 0.125, 2.675, 1.005, 0.0049999, -0.0049999, 999999.995,
+            1e6, 1e7 + 0.125, 123456789.125, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 1e-300};
+
+    @Test
+    public void fixedMatchesFormatter() {
+        for (final double v : EDGES) {
+            assertFixed(v);
+        }
+        for (int i = 0; i < 256; i++) {
+            // Color components
+            assertFixed(i / 255f);
+        }
+        final Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            // Typical page coordinates, with ties and near-ties
+            assertFixed((float) ((random.nextInt(2000000) - 100000) / 1000.0));
+            assertFixed((random.nextInt(2000000) - 100000) / 1000.0);
+            assertFixed((float) (random.nextDouble() * 842));
+            assertFixed(random.nextGaussian() * 1e5);
+        }
+    }
+
+    private static void assertFixed(final double v) {
+        final ContentStream s = new ContentStream(1);
+        s.writeFixed2(v).write(' ').writeFixed3(v);
+        assertEquals(String.format(Locale.ENGLISH, "%.2f %.3f", v, v), s.toString());
+    }
+
+    @Test
+    public void operators() {
+        final ContentStream s = new ContentStream();
+        s.moveTo(1, 2.5f).write(' ').lineTo(-3, 4).write(' ').re(1, 2, 3, -4).write(" B").newline();
+        s.write("BT ").Td(10, 20).write(' ').Tj("a(b)\\c € \u2013 \u0416").write(" ET").newline();
+        assertEquals("1.00 2.50 m -3.00 4.00 l 1.00 2.00 3.00 -4.00 re B\n"
+                + "BT 10.00 20.00 Td (a\\(b\\)\\\\c \u0080 \u0096 ?) Tj ET\n", s.toString());
+        s.reset();
+        s.writeInt(-1234567890123L).write(' ').writeInt(0).write(' ').Tw(0.0125);
+        assertEquals("-1234567890123 0 0.013 Tw", s.toString());
+    }
+}
@@ -0,0 +1,307 @@
+package net.sourceforge.javafpdf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class FPDFTest {
+    @Test
+    public void parallelCompressionGivesSameOutput() throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            assertArrayEquals(render(null, false), render(executor, false));
+            assertArrayEquals(render(null, true), render(executor, true));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void jpegEmbeddedUnchanged() throws IOException {
+        final byte[] rgb = jpeg(BufferedImage.TYPE_INT_RGB);
+        final byte[] gray = jpeg(BufferedImage.TYPE_BYTE_GRAY);
+        final FPDF pdf = new PDFTutorial1();
+        pdf.addPage();
+        pdf.Image("rgb.jpg", rgb, new Coordinate(10, 10), 30, 0, ImageType.JPEG, 0, false);
+        pdf.Image("gray.jpg", gray, new Coordinate(10, 50), 30, 0, ImageType.JPEG, 0, false);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pdf.output(out);
+        final String s = new String(out.toByteArray(), "ISO-8859-1");
+        assertTrue(s.contains(new String(rgb, "ISO-8859-1")));
+        assertTrue(s.contains(new String(gray, "ISO-8859-1")));
+        assertTrue(s.contains("/Width 40\n/Height 30\n/ColorSpace /DeviceRGB"));
+        assertTrue(s.contains("/Width 40\n/Height 30\n/ColorSpace /DeviceGray"));
+    }
+
+    @Test
+    public void maskKeptApartFromSameImage() throws IOException {
+        final byte[] rgb = jpeg(BufferedImage.TYPE_INT_RGB);
+        for (final boolean maskFirst : new boolean[] {true, false}) {
+            final FPDF pdf = new PDFTutorial1();
+            pdf.addPage();
+            pdf.Image("a.jpg", rgb, new Coordinate(10, 10), 30, 0, ImageType.JPEG, 0, maskFirst);
+            pdf.Image("b.jpg", rgb, new Coordinate(10, 50), 30, 0, ImageType.JPEG, 0, !maskFirst);
+            pdf.Image("a.jpg", rgb, new Coordinate(50, 10), 30, 0, ImageType.JPEG, 0, !maskFirst);
+            pdf.Image("c.jpg", rgb, new Coordinate(50, 50), 30, 0, ImageType.JPEG, 0, false);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            pdf.output(out);
+            final String s = new String(out.toByteArray(), "ISO-8859-1");
+            assertEquals(1, s.split("/ColorSpace /DeviceRGB").length - 1);
+            assertEquals(1, s.split("/ColorSpace /DeviceGray").length - 1);
+        }
+    }
+
+    @Test
+    public void pngAlphaBecomesSoftMask() throws IOException {
+        final BufferedImage img = new BufferedImage(40, 30, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < 40; x++) {
+            for (int y = 0; y < 30; y++) {
+                img.setRGB(x, y, (x * 6) << 24 | 0x0000FF);
+            }
+        }
+        final ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", png);
+        final FPDF pdf = new PDFTutorial1();
+        pdf.addPage();
+        pdf.Image("alpha.png", png.toByteArray(), new Coordinate(10, 10), 30, 0, ImageType.PNG, 0, false);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pdf.output(out);
+        final String s = new String(out.toByteArray(), "ISO-8859-1");
+        assertTrue(s.startsWith("%PDF-1.4"));
+        final int smask = s.indexOf("/SMask ");
+        assertTrue(smask > 0);
+        final String ref = s.substring(smask + 7, s.indexOf(" 0 R", smask));
+        assertTrue(s.contains("\n" + ref + " 0 obj\n<</Type /XObject\n/Subtype /Image\n/Width 40\n/Height 30\n/ColorSpace /DeviceGray"));
+        // Only the image and its mask, no second image drawn off the page
+        assertEquals(1, s.split(" Do Q").length - 1);
+    }
+
+    @Test
+    public void identicalImagesShareObjects() throws IOException {
+        final byte[] red = png(0xFF0000);
+        final FPDF pdf = new PDFTutorial1();
+        pdf.addPage();
+        pdf.Image("red.png", red, new Coordinate(10, 10), 30, 0, ImageType.PNG, 0, false);
+        pdf.Image("copy-of-red.png", red.clone(), new Coordinate(10, 50), 30, 0, ImageType.PNG, 0, false);
+        pdf.Image("green.png", png(0x00FF00), new Coordinate(10, 90), 30, 0, ImageType.PNG, 0, false);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pdf.output(out);
+        final String s = new String(out.toByteArray(), "ISO-8859-1");
+        // Two images drawn with the same XObject, one soft mask for both images
+        assertEquals(2, s.split(" /I1 Do Q").length - 1);
+        assertEquals(1, s.split(" /I2 Do Q").length - 1);
+        assertEquals(2, s.split("/Subtype /Image\n/Width 40\n/Height 40\n/SMask").length - 1);
+        assertEquals(3, s.split("/Subtype /Image").length - 1);
+    }
+
+    @Test
+    public void templateWrittenOnce() throws IOException {
+        final FPDF pdf = new PDFTutorial1();
+        pdf.setFont("Times", null, 12);
+        pdf.addPage();
+        pdf.setXY(30, 40);
+        final int id = pdf.beginTemplate();
+        pdf.setFont("Courier", null, 20);
+        pdf.setXY(10, 10);
+        pdf.Cell(0, 10, "Letterhead");
+        assertEquals(id, pdf.endTemplate());
+        assertEquals(30, pdf.getX(), 0);
+        assertEquals(40, pdf.getY(), 0);
+        pdf.useTemplate(id);
+        pdf.Cell(0, 10, "Page 1");
+        pdf.addPage();
+        pdf.useTemplate(id, 10, 20, 0.5f);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pdf.output(out);
+        final String s = new String(out.toByteArray(), "ISO-8859-1");
+        assertEquals(1, s.split("/Subtype /Form").length - 1);
+        assertEquals(1, s.split("\\(Letterhead\\)").length - 1);
+        assertEquals(2, s.split(" /TPL1 Do Q").length - 1);
+        assertTrue(s.contains("q 0.50 0.00 0.00 0.50 28.35 364.25 cm /TPL1 Do Q"));
+        // The page continues in its own font
+        assertTrue(s.contains("Do Q\nBT 87.87 710.73 Td (Page 1) Tj ET"));
+    }
+
+    @Test
+    public void linksLeftOutOfTemplates() throws IOException {
+        final FPDF pdf = new PDFTutorial1();
+        pdf.setFont("Times", null, 12);
+        pdf.addPage();
+        final int link = pdf.addLink();
+        final int id = pdf.beginTemplate();
+        pdf.Cell(40, 10, "Contents", link);
+        pdf.endTemplate();
+        pdf.addPage();
+        pdf.setLink(link, 0, 2);
+        pdf.useTemplate(id);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pdf.output(out);
+        final String s = new String(out.toByteArray(), "ISO-8859-1");
+        assertEquals(1, s.split("\\(Contents\\)").length - 1);
+        assertTrue(!s.contains("/Annots"));
+    }
+
+    @Test
+    public void objectStreamsMakeFilesSmaller() throws IOException {
+        final byte[] plain = render(null, false);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final FPDF pdf = new PDFTutorial1();
+        pdf.setCompression(true);
+        pdf.setObjectStreams(true);
+        pdf.setFont("Times", null, 12);
+        for (int i = 0; i < 200; i++) {
+            pdf.addPage();
+            for (int j = 0; j < 40; j++) {
+                pdf.Cell(0, 6, "Page " + i + ", line " + j, Position.NEXTLINE);
+            }
+        }
+        pdf.output(out);
+        final String s = new String(out.toByteArray(), "ISO-8859-1");
+        assertTrue(s.startsWith("%PDF-1.5\n"));
+        assertEquals(3, s.split("/Type /ObjStm /N ").length - 1);
+        assertEquals(1, s.split("/Type /XRef").length - 1);
+        assertTrue(!s.contains("/Type /Page\n") && !s.contains("\ntrailer\n"));
+        assertTrue(out.size() < plain.length);
+    }
+
+    @Test
+    public void pageCountAliasReplacedInStreamingMode() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final FPDF pdf = new PDFTutorial1();
+        pdf.setStreamingOutput(out);
+        pdf.aliasNbPages("{total}");
+        pdf.setFont("Times", null, 12);
+        pdf.addPage();
+        final int id = pdf.beginTemplate();
+        pdf.Cell(0, 10, "of {total}");
+        pdf.endTemplate();
+        for (int i = 1; i <= 12; i++) {
+            if (i > 1) {
+                pdf.addPage();
+            }
+            pdf.useTemplate(id);
+            pdf.Cell(0, 10, (i % 4 == 0) ? "Seite " + i + " von {total} \u00fc{total}" : "Seite " + i);
+        }
+        // Pages are written right away, the alias is drawn by a form XObject
+        final String streamed = new String(out.toByteArray(), "ISO-8859-1");
+        assertTrue(streamed.contains("(Seite 8 von ) Tj ET q 1.00 0.00 0.00 1.00 "));
+        assertTrue(!streamed.contains("{total}"));
+        pdf.close();
+        final String s = new String(out.toByteArray(), "ISO-8859-1");
+        assertEquals(3 * 2 + 1, s.split(" /NB Do Q").length - 1);
+        assertEquals(3, s.split("Tj ET q [0-9. ]+ cm /NB Do Q BT [0-9. ]+ Td \\( \u00fc\\) Tj ET").length - 1);
+        assertEquals(1, s.split("\nBT \\(12\\) Tj ET\n").length - 1);
+        assertTrue(s.matches("(?s).*/NB [0-9]+ 0 R.*"));
+        assertTrue(!s.contains("{total}"));
+    }
+
+    @Test
+    public void pageCountAliasChangedBetweenPages() throws IOException {
+        final FPDF pdf = new PDFTutorial1();
+        pdf.setFont("Times", null, 12);
+        pdf.aliasNbPages();
+        pdf.addPage();
+        pdf.Cell(0, 10, "a {nb} b {nb}");
+        pdf.aliasNbPages("{total}");
+        pdf.addPage();
+        pdf.Cell(0, 10, "c {total} d {nb}");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pdf.output(out);
+        final String s = new String(out.toByteArray(), "ISO-8859-1");
+        assertTrue(s.contains("(a 2 b 2) Tj"));
+        assertTrue(s.contains("(c 2 d {nb}) Tj"));
+    }
+
+    private static byte[] png(final int rgb) throws IOException {
+        final BufferedImage img = new BufferedImage(40, 40, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < 40; x++) {
+            for (int y = 0; y < 40; y++) {
+                img.setRGB(x, y, (x * 6) << 24 | rgb);
+            }
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", out);
+        return out.toByteArray();
+    }
+
+    private static byte[] jpeg(final int type) throws IOException {
+        final BufferedImage img = new BufferedImage(40, 30, type);
+        for (int x = 0; x < 40; x++) {
+            for (int y = 0; y < 30; y++) {
+                img.setRGB(x, y, x * 6 << 16 | y * 8 << 8 | 128);
+            }
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(img, "jpg", out);
+        return out.toByteArray();
+    }
+
+    private static byte[] render(final Executor executor, final boolean streaming) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final FPDF pdf = new PDFTutorial1();
+        pdf.setCompression(true);
+        pdf.setCompressionExecutor(executor);
+        if (streaming) {
+            pdf.setStreamingOutput(out);
+        }
+        pdf.setFont("Times", null, 12);
+        for (int i = 0; i < 200; i++) {
+            pdf.addPage();
+            for (int j = 0; j < 40; j++) {
+                pdf.Cell(0, 6, "Page " + i + ", line " + j, Position.NEXTLINE);
+            }
+        }
+        if (streaming) {
+            pdf.close();
+        } else {
+            pdf.output(out);
+        }
+        // Blank out the creation date
+        final byte[] bytes = out.toByteArray();
+        final String s = new String(bytes, "ISO-8859-1");
+        final int date = s.indexOf("/CreationDate (D:") + 17;
+        for (int i = date; i < date + 14; i++) {
+            bytes[i] = '0';
+        }
+        return bytes;
+    }
+
+    private static FPDF fiveLines(final float y, final int widows, final int orphans) throws IOException {
+        final FPDF pdf = new PDFTutorial1();
+        pdf.setWidows(widows);
+        pdf.setOrphans(orphans);
+        pdf.addPage();
+        pdf.setFont("Courier", null, 12);
+        pdf.setY(y);
+        pdf.MultiCell(0, 5, "1\n2\n3\n4\n5");
+        return pdf;
+    }
+
+    @Test
+    public void orphansMoveParagraphToNextPage() throws IOException {
+        // One line fits above the bottom margin
+        assertEquals(10 + 4 * 5, fiveLines(271, 1, 1).getY(), 0.01f);
+        final FPDF pdf = fiveLines(271, 1, 2);
+        assertEquals(2, pdf.pageNo());
+        assertEquals(10 + 5 * 5, pdf.getY(), 0.01f);
+    }
+
+    @Test
+    public void widowsMoveLinesToNextPage() throws IOException {
+        // Four lines fit above the bottom margin
+        assertEquals(10 + 1 * 5, fiveLines(256, 1, 1).getY(), 0.01f);
+        final FPDF pdf = fiveLines(256, 2, 1);
+        assertEquals(2, pdf.pageNo());
+        assertEquals(10 + 2 * 5, pdf.getY(), 0.01f);
+    }
+}
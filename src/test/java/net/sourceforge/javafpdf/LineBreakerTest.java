@@ -0,0 +1,108 @@
+package net.sourceforge.javafpdf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+public class LineBreakerTest {
+    private static LineBreaker breaker() throws IOException {
+        // Courier: every character is 600 units wide
+        return new LineBreaker(FPDF.getCharwidths("courier"));
+    }
+
+    @Test
+    public void breaksAtSpaces() throws IOException {
+        final LineBreaker lines = breaker();
+        final String s = "aaa bbb ccc dd";
+        assertEquals(2, lines.breakLines(s, 0, s.length(), 7 * 600));
+        assertEquals("aaa bbb", s.substring(lines.getStart(0), lines.getEnd(0)));
+        assertEquals(LineBreaker.SPACE, lines.getKind(0));
+        assertEquals(1, lines.getSpaces(0));
+        assertEquals(7 * 600, lines.getWidth(0));
+        assertEquals("ccc dd", s.substring(lines.getStart(1), lines.getEnd(1)));
+        assertEquals(LineBreaker.END, lines.getKind(1));
+        assertEquals(6 * 600, lines.getWidth(1));
+    }
+
+    @Test
+    public void breaksLongWordsAndNewlines() throws IOException {
+        final LineBreaker lines = breaker();
+        final String s = "xaaaaaaaaay\nb";
+        assertEquals(4, lines.breakLines(s, 1, s.length(), 4 * 600));
+        assertEquals("aaaa", s.substring(lines.getStart(0), lines.getEnd(0)));
+        assertEquals(LineBreaker.FORCED, lines.getKind(0));
+        assertEquals("aaaa", s.substring(lines.getStart(1), lines.getEnd(1)));
+        assertEquals(LineBreaker.FORCED, lines.getKind(1));
+        assertEquals("ay", s.substring(lines.getStart(2), lines.getEnd(2)));
+        assertEquals(LineBreaker.NEWLINE, lines.getKind(2));
+        assertEquals("b", s.substring(lines.getStart(3), lines.getEnd(3)));
+    }
+
+    @Test
+    public void skipsShortFirstLine() throws IOException {
+        final LineBreaker lines = breaker();
+        final String s = "abcdef gh";
+        assertEquals(3, lines.breakLines(s, 0, s.length(), 2 * 600, 7 * 600, true));
+        assertEquals(LineBreaker.SKIP, lines.getKind(0));
+        assertEquals("abcdef", s.substring(lines.getStart(1), lines.getEnd(1)));
+        assertEquals("gh", s.substring(lines.getStart(2), lines.getEnd(2)));
+    }
+
+    @Test
+    public void optimalKeepsParagraphsAndFallsBack() throws IOException {
+        final LineBreaker lines = breaker();
+        final String s = "aaaa bb cc\nxxxxxxxx y";
+        assertEquals(4, lines.breakLinesOptimal(s, 0, s.length(), 6 * 600, new LineBreaker.Scratch()));
+        assertEquals("aaaa", s.substring(lines.getStart(0), lines.getEnd(0)));
+        assertEquals(LineBreaker.SPACE, lines.getKind(0));
+        assertEquals("bb cc", s.substring(lines.getStart(1), lines.getEnd(1)));
+        assertEquals(LineBreaker.NEWLINE, lines.getKind(1));
+        // A word longer than the line is broken as before
+        assertEquals("xxxxxx", s.substring(lines.getStart(2), lines.getEnd(2)));
+        assertEquals(LineBreaker.FORCED, lines.getKind(2));
+        assertEquals("xx y", s.substring(lines.getStart(3), lines.getEnd(3)));
+        assertEquals(LineBreaker.END, lines.getKind(3));
+    }
+
+    /**
+     * Widest word spacing of the justified lines, in spaces.
+     */
+    private static double widestSpacing(final LineBreaker lines, final float wmax, final int space) {
+        double widest = 0;
+        for (int i = 0; i < lines.getCount(); i++) {
+            assertTrue(lines.getWidth(i) <= wmax);
+            if ((lines.getKind(i) == LineBreaker.SPACE) && (lines.getSpaces(i) > 0)) {
+                widest = Math.max(widest, (wmax - lines.getWidth(i)) / lines.getSpaces(i) / space);
+            }
+        }
+        return widest;
+    }
+
+    @Test
+    public void optimalEvensOutSpacing() throws IOException {
+        final String s = new String(Files.readAllBytes(Paths.get("20k_c1.txt")), StandardCharsets.ISO_8859_1)
+                .replace("\r", "");
+        final Charwidths cw = FPDF.getCharwidths("times");
+        final LineBreaker lines = new LineBreaker(cw);
+        final LineBreaker.Scratch scratch = new LineBreaker.Scratch();
+        for (final float wmax : new float[] {10000, 15000, 25000}) {
+            lines.breakLines(s, 0, s.length(), wmax);
+            final double greedy = widestSpacing(lines, wmax, cw.get(' '));
+            lines.breakLinesOptimal(s, 0, s.length(), wmax, scratch);
+            final double optimal = widestSpacing(lines, wmax, cw.get(' '));
+            assertTrue(optimal + " > " + greedy, optimal <= greedy);
+            // Every character is on a line, in order
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < lines.getCount(); i++) {
+                sb.append(s, lines.getStart(i), lines.getEnd(i)).append(lines.getKind(i) == LineBreaker.SPACE ? ' ' : '\n');
+            }
+            assertEquals(s, sb.toString().substring(0, s.length()));
+        }
+    }
+}
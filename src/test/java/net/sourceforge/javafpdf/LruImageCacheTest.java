@@ -0,0 +1,111 @@
+package net.sourceforge.javafpdf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import javax.imageio.ImageIO;
+
+import net.sourceforge.javafpdf.util.Compressor;
+import org.junit.Test;
+
+public class LruImageCacheTest {
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        final LruImageCache cache = new LruImageCache(250);
+        cache.put("a", image(100));
+        cache.put("b", image(100));
+        assertNotNull(cache.get("a"));
+        cache.put("c", image(100));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertEquals(200, cache.size());
+        cache.put("d", image(300));
+        assertNull(cache.get("d"));
+        assertEquals(200, cache.size());
+    }
+
+    @Test
+    public void documentsShareParsedImages() throws IOException {
+        final BufferedImage img = new BufferedImage(20, 10, BufferedImage.TYPE_INT_ARGB);
+        img.setRGB(3, 4, 0x80FF0000);
+        final ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", png);
+        final LruImageCache cache = new LruImageCache(1 << 20);
+        Counting.parsed = 0;
+        final byte[] first = render(cache, png.toByteArray());
+        final byte[] second = render(cache, png.toByteArray());
+        assertEquals(1, Counting.parsed);
+        assertArrayEquals(render(null, png.toByteArray()), first);
+        assertArrayEquals(first, second);
+    }
+
+    @Test
+    public void settingsPartOfKey() throws IOException {
+        final BufferedImage img = new BufferedImage(20, 10, BufferedImage.TYPE_INT_ARGB);
+        img.setRGB(3, 4, 0x80FF0000);
+        final ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", png);
+        final LruImageCache cache = new LruImageCache(1 << 20);
+        final Compressor fast = new Compressor(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY, 8192);
+        Counting.parsed = 0;
+        render(cache, png.toByteArray(), null, false);
+        final byte[] first = render(cache, png.toByteArray(), fast, false);
+        assertEquals(2, Counting.parsed);
+        assertArrayEquals(render(null, png.toByteArray(), fast, false), first);
+        render(cache, png.toByteArray(), null, true);
+        assertEquals(3, Counting.parsed);
+        render(cache, png.toByteArray(), fast, false);
+        assertEquals(3, Counting.parsed);
+    }
+
+    private static Map<String, Object> image(final int size) {
+        final Map<String, Object> info = new HashMap<>();
+        info.put("data", new byte[size]);
+        return info;
+    }
+
+    private static byte[] render(final ImageCache cache, final byte[] png) throws IOException {
+        return render(cache, png, null, false);
+    }
+
+    private static byte[] render(final ImageCache cache, final byte[] png, final Compressor compressor,
+            final boolean crc) throws IOException {
+        final Counting pdf = new Counting();
+        pdf.setImageCache(cache);
+        pdf.setCompressor(compressor);
+        pdf.setPngCrcCheck(crc);
+        pdf.addPage();
+        pdf.Image("logo.png", png, new Coordinate(10, 10), 20, 0, null, 0, false);
+        pdf.Image("logo.png", png, new Coordinate(10, 30), 20, 0, null, 0, false);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pdf.output(out);
+        final byte[] bytes = out.toByteArray();
+        // Blank out the creation date
+        final int date = new String(bytes, "ISO-8859-1").indexOf("/CreationDate (D:") + 17;
+        for (int i = date; i < date + 14; i++) {
+            bytes[i] = '0';
+        }
+        return bytes;
+    }
+
+    private static class Counting extends PDFTutorial1 {
+        static int parsed;
+
+        @Override
+        protected Map<String, Object> _parsepng(final String fileName, final byte[] imageData) throws IOException {
+            if (this.imageCache != null) {
+                parsed++;
+            }
+            return super._parsepng(fileName, imageData);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package net.sourceforge.javafpdf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class PdfMultiCellTableTest {
+    private static class Table extends PdfMultiCellTable {
+        Table() throws IOException {
+            this.setWidths(Arrays.asList(20, 40));
+            this.setAligns(Arrays.asList(Alignment.LEFT, Alignment.JUSTIFIED));
+            this.setFont("Courier", null, 12);
+            this.addPage();
+        }
+
+        @Override
+        public void Header() {
+        }
+
+        @Override
+        public void Footer() {
+        }
+    }
+
+    @Test
+    public void layoutGivesRowHeight() throws IOException {
+        final Table table = new Table();
+        table.setLineHeight(6);
+        table.setPadding(1.5f);
+        final RowLayout row = table.layout(Arrays.asList("one", "a longer text that needs a few lines"));
+        assertEquals(2, row.getColumns());
+        assertEquals(1, row.getLineCount(0));
+        assertEquals(3, row.getLineCount(1));
+        assertEquals(6 * 3 + 2 * 1.5f, row.getHeight(), 0.001f);
+        final float y = table.getY();
+        table.row(row);
+        assertEquals(y + row.getHeight(), table.getY(), 0.001f);
+    }
+
+    @Test(expected = PDFCreationError.class)
+    public void layoutBoundToFont() throws IOException {
+        final Table table = new Table();
+        final RowLayout row = table.layout(Arrays.asList("one", "two"));
+        table.setFont("Courier", null, 10);
+        table.row(row);
+    }
+
+    @Test
+    public void layoutBoundToTableSettings() throws IOException {
+        for (int change = 0; change < 4; change++) {
+            final Table table = new Table();
+            final RowLayout row = table.layout(Arrays.asList("one", "two"));
+            if (change == 0) {
+                table.setWidths(Arrays.asList(30, 30));
+            } else if (change == 1) {
+                table.setAligns(Arrays.asList(Alignment.LEFT, Alignment.LEFT));
+            } else if (change == 2) {
+                table.setLineHeight(6);
+            } else {
+                table.setPadding(1);
+            }
+            try {
+                table.row(row);
+                fail("Drawn after change " + change);
+            } catch (final PDFCreationError e) {
+                assertTrue(e.getMessage().contains("laid out"));
+            }
+        }
+    }
+
+    @Test
+    public void zeroWidthColumnExtendsToRightMargin() throws IOException {
+        final Table table = new Table();
+        table.setWidths(Arrays.asList(100, 0));
+        final String text = "aaaa bbbb cccc dddd eeee ffff gggg hhhh iiii jjjj kkkk llll mmmm nnnn oooo";
+        final RowLayout row = table.layout(Arrays.asList("one", text));
+        // 90 mm less the cell margins hold 34 Courier characters
+        assertEquals(3, row.getLineCount(1));
+        table.row(row);
+        final Matcher m = Pattern.compile("BT ([\\d.]+) [\\d.]+ Td \\((.*?)\\) Tj").matcher(output(table));
+        int lines = 0;
+        while (m.find()) {
+            final float right = Float.parseFloat(m.group(1)) + m.group(2).length() * 7.2f;
+            assertTrue(m.group(2) + " ends at " + right, right <= (210 - 10) / 25.4f * 72);
+            lines++;
+        }
+        assertEquals(4, lines);
+    }
+
+    @Test(expected = PDFCreationError.class)
+    public void zeroWidthLayoutBoundToPosition() throws IOException {
+        final Table table = new Table();
+        table.setWidths(Arrays.asList(100, 0));
+        final RowLayout row = table.layout(Arrays.asList("one", "two"));
+        table.setX(30);
+        table.row(row);
+    }
+
+    private static List<List<String>> rows(final int count) {
+        final List<List<String>> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            rows.add(Arrays.asList("Row " + i, (i % 3 == 0) ? "some text long enough to wrap over two lines" : "short"));
+        }
+        return rows;
+    }
+
+    private static String output(final FPDF pdf) throws IOException {
+        pdf.setCompression(false);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pdf.output(out);
+        return new String(out.toByteArray(), "ISO-8859-1").replaceAll("/CreationDate \\(D:\\d+\\)", "");
+    }
+
+    @Test
+    public void bulkRowsSameAsSingleRows() throws IOException {
+        final Table single = new Table();
+        for (final List<String> row : rows(200)) {
+            single.row(row);
+        }
+        final Table bulk = new Table();
+        assertEquals(200, bulk.rows(rows(200).stream()));
+        assertEquals(single.pageNo(), bulk.pageNo());
+        assertEquals(output(single), output(bulk));
+    }
+
+    private static int count(final String s, final String part) {
+        int count = 0;
+        for (int i = s.indexOf(part); i >= 0; i = s.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void headerRepeatedAfterPageBreaks() throws IOException {
+        final Table table = new Table();
+        table.setHeader(Arrays.asList("Name", "Value"));
+        table.rows(rows(200));
+        table.endTable();
+        table.row(Arrays.asList("after", "the table"));
+        final String s = output(table);
+        // Laid out once, placed on every page and above the second table
+        assertEquals(1, count(s, "(Name)"));
+        assertEquals(table.pageNo() + 1, count(s, "/TPL1 Do"));
+    }
+
+    @Test
+    public void newHeaderStartsNewTable() throws IOException {
+        final Table table = new Table();
+        table.setHeader(Arrays.asList("A", "B"));
+        table.rows(rows(3));
+        table.MultiCell(0, 5, "A paragraph between the tables.");
+        table.setHeader(Arrays.asList("N1", "N2"));
+        table.rows(rows(3));
+        table.setWidths(Arrays.asList(30, 30));
+        table.rows(rows(3));
+        final String s = output(table);
+        assertEquals(1, table.pageNo());
+        assertEquals(1, count(s, "/TPL1 Do"));
+        assertEquals(1, count(s, "/TPL2 Do"));
+        assertEquals(1, count(s, "/TPL3 Do"));
+        assertEquals(2, count(s, "(N1)"));
+    }
+
+    @Test
+    public void headerKeptWithFirstRow() throws IOException {
+        final Table table = new Table();
+        table.setHeader(Arrays.asList("Name", "Value"));
+        table.setY(275);
+        table.row(Arrays.asList("one", "two"));
+        assertEquals(2, table.pageNo());
+    }
+}
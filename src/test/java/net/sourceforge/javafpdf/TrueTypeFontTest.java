@@ -0,0 +1,125 @@
+package net.sourceforge.javafpdf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.awt.FontFormatException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+public class TrueTypeFontTest {
+    private static final File DEJAVU = new File("/usr/share/fonts/truetype/dejavu/DejaVuSans.ttf");
+
+    @Test
+    public void subsetKeepsUsedGlyphs() throws IOException, FontFormatException {
+        assumeTrue(DEJAVU.isFile());
+        final TrueTypeFont font = TrueTypeFont.load(DEJAVU);
+        assertSame(font, TrueTypeFont.load(DEJAVU));
+        assertEquals("DejaVuSans", font.getPostScriptName());
+        final BitSet used = new BitSet();
+        for (final char c : "Hello \u00e9\u0080".toCharArray()) {
+            used.set(c);
+        }
+        final byte[] subset = font.subset(used);
+        assertTrue(subset.length < DEJAVU.length() / 20);
+        final TrueTypeFont parsed = new TrueTypeFont(subset, "subset.ttf");
+        for (int c = used.nextSetBit(0); c >= 0; c = used.nextSetBit(c + 1)) {
+            assertEquals(font.getWidth(c), parsed.getWidth(c));
+        }
+        assertEquals(parsed.getWidth(0), parsed.getWidth('x'));
+        // The subset must still be a valid font
+        final java.awt.Font awt = java.awt.Font.createFont(java.awt.Font.TRUETYPE_FONT, new ByteArrayInputStream(subset));
+        assertTrue(awt.canDisplay('\u20ac'));
+    }
+
+    @Test
+    public void embeddedInDocument() throws IOException {
+        assumeTrue(DEJAVU.isFile());
+        final FPDF pdf = new PDFTutorial1();
+        pdf.addFont("Arial", null, DEJAVU);
+        pdf.setFont("Arial", null, 12);
+        pdf.addPage();
+        pdf.Cell(0, 10, "Gr\u00fc\u00dfe");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pdf.output(out);
+        final String s = new String(out.toByteArray(), "ISO-8859-1");
+        assertTrue(s.matches("(?s).*/BaseFont /[A-Z]{6}\\+DejaVuSans\n/Subtype /TrueType\n.*"));
+        assertEquals(1, s.split("/FontFile2 ").length - 1);
+        assertTrue(s.contains("(Gr\u00fc\u00dfe) Tj"));
+    }
+
+    @Test
+    public void winAnsiCharacters() throws IOException, FontFormatException, DataFormatException {
+        assumeTrue(DEJAVU.isFile());
+        final FPDF pdf = new PDFTutorial1();
+        pdf.addFont("Arial", null, DEJAVU);
+        pdf.setFont("Arial", null, 12);
+        pdf.addPage();
+        final String txt = "\u20ac5 \u2013 \u201cok\u201d";
+        final TrueTypeFont font = TrueTypeFont.load(DEJAVU);
+        assertEquals(font.getWidth(0x80), font.getCharwidths().get('\u20ac'));
+        assertEquals(font.getWidth(0x96), font.getCharwidths().get('\u2013'));
+        pdf.Cell(0, 10, txt);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pdf.output(out);
+        final byte[] doc = out.toByteArray();
+        assertTrue(new String(doc, StandardCharsets.ISO_8859_1).contains("(\u00805 \u0096 \u0093ok\u0094) Tj"));
+        final java.awt.Font awt = java.awt.Font.createFont(java.awt.Font.TRUETYPE_FONT,
+                new ByteArrayInputStream(fontFile(doc)));
+        for (final char c : txt.toCharArray()) {
+            assertTrue(Character.toString(c), awt.canDisplay(c));
+        }
+    }
+
+    @Test
+    public void pageCountDigitsEmbedded() throws IOException, FontFormatException, DataFormatException {
+        assumeTrue(DEJAVU.isFile());
+        final FPDF pdf = new PDFTutorial1();
+        pdf.addFont("Arial", null, DEJAVU);
+        pdf.aliasNbPages();
+        pdf.setFont("Arial", null, 12);
+        for (int i = 0; i < 3; i++) {
+            pdf.addPage();
+            pdf.Cell(0, 10, "Total pages: {nb}");
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pdf.output(out);
+        final byte[] doc = out.toByteArray();
+        assertTrue(new String(doc, StandardCharsets.ISO_8859_1).contains("(Total pages: 3) Tj"));
+        final java.awt.Font awt = java.awt.Font.createFont(java.awt.Font.TRUETYPE_FONT,
+                new ByteArrayInputStream(fontFile(doc)));
+        assertTrue(awt.canDisplay('3'));
+        assertTrue(!awt.canDisplay('5'));
+    }
+
+    /**
+     * @return the uncompressed font file embedded in a document.
+     */
+    static byte[] fontFile(final byte[] doc) throws DataFormatException {
+        final String s = new String(doc, StandardCharsets.ISO_8859_1);
+        final int start = s.indexOf("stream\n", s.indexOf("/Length1 ")) + 7;
+        final Inflater inflater = new Inflater();
+        inflater.setInput(doc, start, doc.length - start);
+        byte[] font = new byte[1 << 16];
+        int length = 0;
+        while (!inflater.finished()) {
+            if (length == font.length) {
+                font = Arrays.copyOf(font, length << 1);
+            }
+            length += inflater.inflate(font, length, font.length - length);
+        }
+        inflater.end();
+        return Arrays.copyOf(font, length);
+    }
+}
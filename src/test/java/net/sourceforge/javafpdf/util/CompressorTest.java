@@ -0,0 +1,73 @@
+package net.sourceforge.javafpdf.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+public class CompressorTest {
+    private static byte[] sample() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("BT 31.19 ").append(i % 800).append(".77 Td (Line ").append(i).append(") Tj ET\n");
+        }
+        return sb.toString().getBytes();
+    }
+
+    @Test
+    public void defaultMatchesDeflaterOutputStream() throws IOException {
+        final byte[] content = sample();
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(expected)) {
+            out.write(content);
+        }
+        assertArrayEquals(expected.toByteArray(), Compressor.compress(content));
+        // Deflaters come back from the pool reset
+        assertArrayEquals(expected.toByteArray(), Compressor.compress(content));
+    }
+
+    @Test
+    public void levelsProduceValidStreams() throws DataFormatException {
+        final byte[] content = sample();
+        final byte[] fast = new Compressor(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY, 16).deflate(content);
+        final byte[] best = new Compressor(Deflater.BEST_COMPRESSION, Deflater.FILTERED, 1 << 16).deflate(content);
+        assertTrue(best.length < fast.length);
+        for (final byte[] compressed : new byte[][] {fast, best}) {
+            final Inflater inflater = new Inflater();
+            inflater.setInput(compressed);
+            final byte[] result = new byte[content.length];
+            assertEquals(content.length, inflater.inflate(result));
+            assertTrue(inflater.finished());
+            assertArrayEquals(content, result);
+        }
+    }
+
+    @Test
+    public void decompressInflates() {
+        final byte[] content = sample();
+        assertArrayEquals(content, Compressor.decompress(Compressor.compress(content)));
+        // Output smaller and larger than expected
+        assertArrayEquals(content, Compressor.decompress(Compressor.compress(content), 10));
+        assertArrayEquals(new byte[0], Compressor.decompress(Compressor.compress(new byte[0])));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void decompressTruncated() {
+        final byte[] compressed = Compressor.compress(sample());
+        Compressor.decompress(Arrays.copyOf(compressed, compressed.length / 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidLevel() {
+        new Compressor(10, Deflater.DEFAULT_STRATEGY, 8192);
+    }
+}
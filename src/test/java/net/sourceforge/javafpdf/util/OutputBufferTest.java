@@ -0,0 +1,67 @@
+package net.sourceforge.javafpdf.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class OutputBufferTest {
+    @Test
+    public void positionSpansBlocksAndFlushes() throws IOException {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        final OutputBuffer buffer = new OutputBuffer(target);
+        final byte[] chunk = new byte[50000];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = (byte) i;
+        }
+        buffer.write(chunk);
+        buffer.write('x');
+        assertEquals(50001, buffer.position());
+        buffer.flush();
+        assertEquals(50001, target.size());
+        assertEquals(0, buffer.size());
+        buffer.write(chunk);
+        buffer.write(chunk);
+        assertEquals(150001, buffer.position());
+        buffer.flush();
+        final byte[] all = target.toByteArray();
+        assertEquals(150001, all.length);
+        assertEquals(chunk[49999], all[100000]);
+        assertEquals((byte) 'x', all[50000]);
+    }
+
+    @Test
+    public void inMemoryCopy() {
+        final OutputBuffer buffer = new OutputBuffer();
+        final byte[] chunk = new byte[100000];
+        chunk[99999] = 1;
+        buffer.write(chunk, 10, 99990);
+        assertEquals(99990, buffer.position());
+        final byte[] copy = buffer.toByteArray();
+        assertEquals(99990, copy.length);
+        assertEquals(1, copy[99989]);
+        assertArrayEquals(copy, buffer.toByteArray());
+    }
+
+    @Test
+    public void byteBuffersWrittenInPlace() {
+        final OutputBuffer buffer = new OutputBuffer();
+        final ByteBuffer direct = ByteBuffer.allocateDirect(70000);
+        for (int i = 0; i < 70000; i++) {
+            direct.put((byte) i);
+        }
+        direct.flip();
+        buffer.write('x');
+        buffer.write(direct);
+        buffer.write((ByteBuffer) ByteBuffer.wrap(new byte[] {1, 2, 3, 4}).position(2));
+        assertEquals(0, direct.remaining());
+        final byte[] all = buffer.toByteArray();
+        assertEquals(70003, all.length);
+        assertEquals((byte) 69999, all[70000]);
+        assertEquals(3, all[70001]);
+    }
+}
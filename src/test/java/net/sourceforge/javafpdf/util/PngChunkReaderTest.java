@@ -0,0 +1,61 @@
+package net.sourceforge.javafpdf.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class PngChunkReaderTest {
+    @Test
+    public void readsChunks() throws IOException {
+        final PngChunkReader reader = new PngChunkReader(ByteBuffer.wrap(png()), true);
+        assertTrue(reader.next());
+        assertEquals("IHDR", reader.getType());
+        assertEquals(13, reader.getData().remaining());
+        assertEquals(20, reader.getData().getInt(0));
+        String type = null;
+        while (reader.next()) {
+            type = reader.getType();
+        }
+        assertEquals("IEND", type);
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void checksCrc() throws IOException {
+        final byte[] png = png();
+        // Last byte of the IHDR data
+        png[8 + 8 + 12] ^= 1;
+        final PngChunkReader lenient = new PngChunkReader(ByteBuffer.wrap(png), false);
+        assertTrue(lenient.next());
+        final PngChunkReader strict = new PngChunkReader(ByteBuffer.wrap(png), true);
+        try {
+            strict.next();
+            fail();
+        } catch (final IOException e) {
+            assertTrue(e.getMessage().contains("CRC"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedChunk() throws IOException {
+        final byte[] png = png();
+        final ByteBuffer truncated = ByteBuffer.wrap(png, 0, 8 + 8 + 10);
+        new PngChunkReader(truncated, false).next();
+    }
+
+    private static byte[] png() throws IOException {
+        final BufferedImage img = new BufferedImage(20, 10, BufferedImage.TYPE_INT_RGB);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", out);
+        return out.toByteArray();
+    }
+}